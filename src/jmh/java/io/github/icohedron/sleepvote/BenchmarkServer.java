@@ -0,0 +1,41 @@
+package io.github.icohedron.sleepvote;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link StubServer} with a {@link SleepVoteManager} running on it and a single populated world, shared by the benchmarks
+ */
+final class BenchmarkServer {
+
+    final StubServer server;
+    final SleepVoteManager manager;
+    final StubServer.StubWorld world;
+    final List<StubServer.StubPlayer> players;
+
+    /**
+     * @param playerCount the number of players online in the world
+     * @param sleepingCount how many of those are in bed, counted as sleeping by the manager
+     */
+    BenchmarkServer(int playerCount, int sleepingCount, Map<String, Object> configOverrides) {
+        server = StubServer.install();
+        SleepVote sleepVote = server.newPlugin();
+        manager = new SleepVoteManager(sleepVote, StubServer.loadConfig(sleepVote.getLogger(), configOverrides));
+
+        world = server.createWorld("world");
+        players = new ArrayList<>(playerCount);
+        for (int i = 0; i < playerCount; i++) {
+            StubServer.StubPlayer player = server.createPlayer("player" + i, world);
+            manager.onPlayerJoin(null, player.player);
+            players.add(player);
+        }
+
+        for (int i = 0; i < sleepingCount; i++) {
+            StubServer.StubPlayer player = players.get(i);
+            player.inBed = true;
+            manager.onPreSleepingEvent(null, player.player);
+        }
+        server.tick(100); // Long enough for every bed entry to be confirmed
+    }
+}
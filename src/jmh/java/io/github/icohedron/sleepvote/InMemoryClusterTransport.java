@@ -0,0 +1,128 @@
+package io.github.icohedron.sleepvote;
+
+import io.github.icohedron.sleepvote.api.ClusterTransport;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+
+/**
+ * Connects the cluster of several {@link StubServer}s in one JVM. Messages are only delivered when
+ * {@link Network#deliver()} is called, and the network can be told to lose some and delay others, which reorders them.
+ * Messages larger than a UDP datagram of {@link UdpClusterTransport} are rejected.
+ * Like everything on the stub servers, this is deterministic for a given seed.
+ */
+final class InMemoryClusterTransport implements ClusterTransport {
+
+    private final Network network;
+    private Consumer<byte[]> receiver;
+
+    private InMemoryClusterTransport(Network network) {
+        this.network = network;
+    }
+
+    @Override
+    public void start(Consumer<byte[]> receiver) {
+        this.receiver = receiver;
+    }
+
+    @Override
+    public void send(byte[] message) {
+        network.send(this, message);
+    }
+
+    @Override
+    public void stop() {
+        receiver = null;
+    }
+
+    static final class Network {
+
+        private final Random random;
+        private final double lossRate;
+        private final int maxDelayTicks;
+
+        private final List<InMemoryClusterTransport> transports;
+        private final List<InFlight> inFlight;
+        private long sent;
+        private long lost;
+
+        /**
+         * @param lossRate the chance of a message never reaching one of the servers
+         * @param maxDelayTicks messages are delivered after a random delay between 0 and this many ticks
+         */
+        Network(long seed, double lossRate, int maxDelayTicks) {
+            random = new Random(seed);
+            this.lossRate = lossRate;
+            this.maxDelayTicks = maxDelayTicks;
+            transports = new ArrayList<>();
+            inFlight = new ArrayList<>();
+        }
+
+        InMemoryClusterTransport newTransport() {
+            InMemoryClusterTransport transport = new InMemoryClusterTransport(this);
+            transports.add(transport);
+            return transport;
+        }
+
+        /**
+         * Hands every message whose delay is over to the receiver of its destination, in the order they were sent
+         */
+        void deliver() {
+            List<InFlight> due = new ArrayList<>();
+            for (Iterator<InFlight> iterator = inFlight.iterator(); iterator.hasNext(); ) {
+                InFlight message = iterator.next();
+                if (message.ticksLeft-- <= 0) {
+                    iterator.remove();
+                    due.add(message);
+                }
+            }
+            for (InFlight message : due) {
+                Consumer<byte[]> receiver = message.destination.receiver;
+                if (receiver != null) { // Otherwise the destination isn't listening, like a server that is down
+                    receiver.accept(message.bytes);
+                }
+            }
+        }
+
+        long getSentCount() {
+            return sent;
+        }
+
+        long getLostCount() {
+            return lost;
+        }
+
+        private void send(InMemoryClusterTransport source, byte[] message) {
+            if (message.length > SleepVoteCluster.MAX_MESSAGE_BYTES) {
+                throw new IllegalArgumentException("A cluster message of " + message.length + " bytes doesn't fit into a datagram");
+            }
+            for (InMemoryClusterTransport destination : transports) {
+                if (destination == source) {
+                    continue;
+                }
+                sent++;
+                if (random.nextDouble() < lossRate) {
+                    lost++;
+                } else {
+                    inFlight.add(new InFlight(destination, message, random.nextInt(maxDelayTicks + 1)));
+                }
+            }
+        }
+    }
+
+    private static final class InFlight {
+
+        private final InMemoryClusterTransport destination;
+        private final byte[] bytes;
+        private int ticksLeft;
+
+        private InFlight(InMemoryClusterTransport destination, byte[] bytes, int ticksLeft) {
+            this.destination = destination;
+            this.bytes = bytes;
+            this.ticksLeft = ticksLeft;
+        }
+    }
+}
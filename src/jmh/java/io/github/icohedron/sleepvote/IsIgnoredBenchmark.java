@@ -0,0 +1,45 @@
+package io.github.icohedron.sleepvote;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.spongepowered.api.entity.living.player.Player;
+
+import java.util.Collections;
+
+/**
+ * Checks every player of a world, as a full recount would
+ */
+@State(Scope.Benchmark)
+public class IsIgnoredBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int players;
+
+    private SleepVoteManager manager;
+    private Player[] worldPlayers;
+
+    @Setup
+    public void setUp() {
+        BenchmarkServer benchmarkServer = new BenchmarkServer(players, 0, Collections.singletonMap("ignore_admins", true));
+        manager = benchmarkServer.manager;
+        worldPlayers = benchmarkServer.players.stream().map(player -> player.player).toArray(Player[]::new);
+    }
+
+    @Benchmark
+    public void isIgnoredCached(Blackhole blackhole) {
+        for (Player player : worldPlayers) {
+            blackhole.consume(manager.isIgnored(player));
+        }
+    }
+
+    @Benchmark
+    public void isIgnoredRecomputed(Blackhole blackhole) {
+        for (Player player : worldPlayers) {
+            blackhole.consume(manager.refreshIgnored(player));
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package io.github.icohedron.sleepvote;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.spongepowered.api.entity.living.player.Player;
+
+import java.util.Collections;
+
+/**
+ * Checks every sleeping player of a world, as a full recount would
+ */
+@State(Scope.Benchmark)
+public class IsInBedBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int players;
+
+    private SleepVoteManager manager;
+    private Player[] sleepingPlayers;
+
+    @Setup
+    public void setUp() {
+        BenchmarkServer benchmarkServer = new BenchmarkServer(players, players / 2, Collections.singletonMap("required_percent_sleeping", "1.0"));
+        manager = benchmarkServer.manager;
+        sleepingPlayers = benchmarkServer.players.stream().limit(players / 2).map(player -> player.player).toArray(Player[]::new);
+    }
+
+    @Benchmark
+    public void isInBedCached(Blackhole blackhole) {
+        for (Player player : sleepingPlayers) {
+            blackhole.consume(manager.isInBed(player));
+        }
+    }
+
+    @Benchmark
+    public void isInBedHitbox(Blackhole blackhole) {
+        for (Player player : sleepingPlayers) {
+            blackhole.consume(SleepVoteManager.readInBed(player));
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package io.github.icohedron.sleepvote;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.spongepowered.api.text.Text;
+
+import java.util.Collections;
+
+@State(Scope.Benchmark)
+public class ParseMessageBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int players;
+
+    private Messenger messenger;
+    private MessageTemplate enterBedMessage;
+    private int sleeping;
+
+    @Setup
+    public void setUp() {
+        BenchmarkServer benchmarkServer = new BenchmarkServer(players, 0, Collections.emptyMap());
+        messenger = benchmarkServer.manager.getMessenger();
+        enterBedMessage = benchmarkServer.manager.getConfig().getEnterBedMessage();
+    }
+
+    /**
+     * The same counts every time, as when a message is repeated to a whole world
+     */
+    @Benchmark
+    public Text parseMessageRepeated() {
+        return messenger.parseMessage(enterBedMessage, players / 2, players, "player0");
+    }
+
+    /**
+     * Different counts every time, as when players keep entering and leaving their beds
+     */
+    @Benchmark
+    public Text parseMessageChanging() {
+        sleeping = sleeping < players ? sleeping + 1 : 0;
+        return messenger.parseMessage(enterBedMessage, sleeping, players, "player0");
+    }
+}
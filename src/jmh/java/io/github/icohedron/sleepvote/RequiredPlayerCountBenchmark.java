@@ -0,0 +1,30 @@
+package io.github.icohedron.sleepvote;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Collections;
+
+@State(Scope.Benchmark)
+public class RequiredPlayerCountBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int players;
+
+    private BenchmarkServer benchmarkServer;
+    private SVWorldData svWorldData;
+
+    @Setup
+    public void setUp() {
+        benchmarkServer = new BenchmarkServer(players, 0, Collections.emptyMap());
+        svWorldData = benchmarkServer.manager.getSVWorldData(benchmarkServer.world.world);
+    }
+
+    @Benchmark
+    public int getRequiredPlayerCount() {
+        return benchmarkServer.manager.getRequiredPlayerCount(svWorldData);
+    }
+}
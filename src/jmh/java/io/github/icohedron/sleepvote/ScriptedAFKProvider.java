@@ -0,0 +1,43 @@
+package io.github.icohedron.sleepvote;
+
+import io.github.icohedron.sleepvote.api.AFKProvider;
+import org.spongepowered.api.entity.living.player.Player;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Stands in for Nucleus, which can't be loaded on the stub server. Players only go AFK or come back when told to
+ */
+final class ScriptedAFKProvider implements AFKProvider {
+
+    private final Set<UUID> afkPlayers = new HashSet<>();
+    private Consumer<Player> onChange;
+
+    @Override
+    public void enable(Consumer<Player> onChange) {
+        this.onChange = onChange;
+    }
+
+    @Override
+    public void disable() {
+        afkPlayers.clear();
+    }
+
+    @Override
+    public boolean isAFK(UUID playerUuid) {
+        return afkPlayers.contains(playerUuid);
+    }
+
+    void set(Player player, boolean afk) {
+        if (afk ? afkPlayers.add(player.getUniqueId()) : afkPlayers.remove(player.getUniqueId())) {
+            onChange.accept(player);
+        }
+    }
+
+    void toggle(Player player) {
+        set(player, !afkPlayers.contains(player.getUniqueId()));
+    }
+}
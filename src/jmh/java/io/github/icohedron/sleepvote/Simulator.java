@@ -0,0 +1,406 @@
+package io.github.icohedron.sleepvote;
+
+import io.github.icohedron.sleepvote.api.ClusterTransport;
+import org.spongepowered.api.event.entity.MoveEntityEvent;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Consumer;
+
+/**
+ * Drives a {@link SleepVoteManager} on a {@link StubServer} through a scripted scenario, one tick at a time,
+ * and reports what it cost. Runs are deterministic for a given scenario, seed and tick count.
+ * <p>
+ * Scenarios with several servers run a cluster: every server is a stub server of its own, with the same worlds and
+ * players of its own, connected by an {@link InMemoryClusterTransport} that loses and reorders messages.
+ * <p>
+ * Usage: Simulator [scenario] [ticks] [seed], e.g. './gradlew simulate -Pscenario=bed-spam -Pticks=2000 -Pseed=1'
+ */
+public final class Simulator {
+
+    private static final int DAY_LENGTH = 24000;
+    private static final int NIGHT_START = 12541; // When players are allowed to sleep
+    private static final int AFK_NOTICE_TICKS = 100; // Skip AFK changes of players that just changed, like Nucleus would
+    private static final double CLUSTER_LOSS_RATE = 0.2;
+    private static final int CLUSTER_MAX_DELAY_TICKS = 5;
+
+    enum Scenario {
+        BED_SPAM("bed-spam", 1, 2000),
+        MANY_WORLDS("many-worlds", 300, 10),
+        TELEPORTS("teleports", 20, 100),
+        AFK_FLAPPING("afk-flapping", 10, 200),
+        MIXED("mixed", 100, 30),
+        CLUSTER("cluster", 10, 20, 3),
+        CLUSTER_MANY_WORLDS("cluster-many-worlds", 100, 5, 3); // Too many worlds for the state of a server to fit into one message
+
+        final String name;
+        final int worlds;
+        final int playersPerWorld; // On each server
+        final int servers;
+
+        Scenario(String name, int worlds, int playersPerWorld) {
+            this(name, worlds, playersPerWorld, 1);
+        }
+
+        Scenario(String name, int worlds, int playersPerWorld, int servers) {
+            this.name = name;
+            this.worlds = worlds;
+            this.playersPerWorld = playersPerWorld;
+            this.servers = servers;
+        }
+
+        static Scenario of(String name) {
+            return Arrays.stream(values())
+                    .filter(scenario -> scenario.name.equals(name))
+                    .findFirst()
+                    .orElseThrow(() -> new IllegalArgumentException("Unknown scenario '" + name + "'. Choose one of "
+                            + Arrays.toString(Arrays.stream(values()).map(scenario -> scenario.name).toArray())));
+        }
+    }
+
+    private final Scenario scenario;
+    private final Random random;
+    private final InMemoryClusterTransport.Network network; // Null unless there are several servers
+    private final List<Node> nodes;
+    private int currentTick;
+
+    private final Map<StubServer.StubWorld, Integer> firstSleeperTicks;
+    private final Map<StubServer.StubPlayer, Integer> lastAfkChangeTicks;
+    private final List<Integer> timesToSkip;
+
+    Simulator(Scenario scenario, long seed) {
+        this.scenario = scenario;
+        this.random = new Random(seed);
+        network = scenario.servers > 1 ? new InMemoryClusterTransport.Network(seed, CLUSTER_LOSS_RATE, CLUSTER_MAX_DELAY_TICKS) : null;
+
+        nodes = new ArrayList<>();
+        for (int n = 0; n < scenario.servers; n++) {
+            nodes.add(new Node(n));
+        }
+
+        firstSleeperTicks = new HashMap<>();
+        lastAfkChangeTicks = new HashMap<>();
+        timesToSkip = new ArrayList<>();
+    }
+
+    public static void main(String[] args) {
+        Scenario scenario = Scenario.of(args.length > 0 ? args[0] : "mixed");
+        int ticks = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+
+        new Simulator(scenario, seed).run(ticks).print(System.out::println);
+    }
+
+    Report run(int ticks) {
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        long[] cpuNanos = new long[ticks];
+        long[] allocatedBytes = new long[ticks];
+
+        for (int i = 0; i < ticks; i++) {
+            long cpuBefore = threadMXBean.getCurrentThreadCpuTime();
+            long allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+
+            for (Node node : nodes) {
+                node.activate();
+                script(node);
+                node.server.tick();
+            }
+            if (network != null) {
+                network.deliver();
+            }
+            currentTick++;
+
+            cpuNanos[i] = threadMXBean.getCurrentThreadCpuTime() - cpuBefore;
+            allocatedBytes[i] = threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+            for (Node node : nodes) {
+                node.activate();
+                advanceWorlds(node);
+            }
+        }
+
+        long messages = 0;
+        long sounds = 0;
+        int playerCount = 0;
+        int[] mornings = new int[nodes.size()];
+        for (int n = 0; n < nodes.size(); n++) {
+            Node node = nodes.get(n);
+            for (StubServer.StubPlayer player : node.players) {
+                messages += player.messagesReceived;
+                sounds += player.soundsReceived;
+            }
+            playerCount += node.players.size();
+            mornings[n] = node.mornings;
+        }
+        return new Report(scenario, ticks, playerCount, scenario.worlds, cpuNanos, allocatedBytes, timesToSkip, messages, sounds,
+                mornings, network != null ? network.getSentCount() : 0, network != null ? network.getLostCount() : 0);
+    }
+
+    /**
+     * What the players of the scenario do on the server this tick
+     */
+    private void script(Node node) {
+        switch (scenario) {
+            case BED_SPAM:
+                // Players keep clicking their beds and getting out again
+                for (int i = 0; i < 50; i++) {
+                    StubServer.StubPlayer player = randomPlayer(node);
+                    if (player.inBed && random.nextInt(4) == 0) {
+                        leaveBed(node, player);
+                    } else {
+                        enterBed(node, player);
+                    }
+                }
+                break;
+            case MANY_WORLDS:
+                // Players slowly go to bed in every world, until their night is skipped
+                for (int i = 0; i < 20; i++) {
+                    StubServer.StubPlayer player = randomPlayer(node);
+                    if (!player.inBed) {
+                        enterBed(node, player);
+                    }
+                }
+                break;
+            case TELEPORTS:
+                // Half of the players sleep while the others hop between worlds
+                for (int i = 0; i < 20; i++) {
+                    StubServer.StubPlayer player = randomPlayer(node);
+                    if (random.nextBoolean()) {
+                        if (!player.inBed) {
+                            enterBed(node, player);
+                        }
+                    } else if (!player.inBed) {
+                        teleport(node, player, randomWorld(node));
+                    }
+                }
+                break;
+            case AFK_FLAPPING:
+                // Players go AFK and come back constantly, while some go to bed
+                for (int i = 0; i < 50; i++) {
+                    StubServer.StubPlayer player = randomPlayer(node);
+                    Integer lastChange = lastAfkChangeTicks.get(player);
+                    if (lastChange == null || currentTick - lastChange >= AFK_NOTICE_TICKS) {
+                        toggleAfk(node, player);
+                    }
+                }
+                for (int i = 0; i < 5; i++) {
+                    StubServer.StubPlayer player = randomPlayer(node);
+                    if (!player.inBed) {
+                        enterBed(node, player);
+                    }
+                }
+                break;
+            case MIXED:
+            case CLUSTER: // The same on every server, while the servers lose and reorder each other's messages
+            case CLUSTER_MANY_WORLDS:
+            default:
+                for (int i = 0; i < 30; i++) {
+                    StubServer.StubPlayer player = randomPlayer(node);
+                    switch (random.nextInt(5)) {
+                        case 0:
+                        case 1:
+                            if (!player.inBed) {
+                                enterBed(node, player);
+                            }
+                            break;
+                        case 2:
+                            if (player.inBed) {
+                                leaveBed(node, player);
+                            }
+                            break;
+                        case 3:
+                            if (!player.inBed) {
+                                teleport(node, player, randomWorld(node));
+                            }
+                            break;
+                        case 4:
+                            toggleAfk(node, player);
+                            break;
+                    }
+                }
+                break;
+        }
+    }
+
+    /**
+     * Advances the time of every world of the server, waking up its players like vanilla does when morning comes
+     */
+    private void advanceWorlds(Node node) {
+        for (StubServer.StubWorld world : node.worlds) {
+            long timeOfDayBefore = world.worldTime % DAY_LENGTH;
+            world.worldTime++;
+            long timeOfDay = world.worldTime % DAY_LENGTH;
+
+            if (timeOfDay < timeOfDayBefore || timeOfDay < NIGHT_START && timeOfDayBefore >= NIGHT_START) { // Morning came, skipped or not
+                Integer firstSleeperTick = firstSleeperTicks.remove(world);
+                if (firstSleeperTick != null) {
+                    timesToSkip.add(currentTick - firstSleeperTick);
+                }
+                node.mornings++;
+                for (StubServer.StubPlayer player : node.players) {
+                    if (player.world == world && player.inBed) {
+                        leaveBed(node, player);
+                    }
+                }
+                world.worldTime += NIGHT_START; // Straight back to night, so that there is always something to vote on
+            }
+        }
+    }
+
+    private StubServer.StubPlayer randomPlayer(Node node) {
+        return node.players.get(random.nextInt(node.players.size()));
+    }
+
+    private StubServer.StubWorld randomWorld(Node node) {
+        return node.worlds.get(random.nextInt(node.worlds.size()));
+    }
+
+    private void enterBed(Node node, StubServer.StubPlayer player) {
+        firstSleeperTicks.putIfAbsent(player.world, currentTick);
+        player.inBed = true;
+        node.manager.onPreSleepingEvent(null, player.player);
+    }
+
+    private void leaveBed(Node node, StubServer.StubPlayer player) {
+        player.inBed = false;
+        node.manager.onPostSleepingEvent(null, player.player);
+    }
+
+    private void teleport(Node node, StubServer.StubPlayer player, StubServer.StubWorld world) {
+        MoveEntityEvent.Teleport event = StubServer.teleportEvent(player, world);
+        node.manager.onMoveEvent(event, player.player);
+        node.manager.onTeleportEvent(event, player.player);
+        node.server.movePlayer(player, world);
+    }
+
+    private void toggleAfk(Node node, StubServer.StubPlayer player) {
+        lastAfkChangeTicks.put(player, currentTick);
+        node.afkProvider.toggle(player.player);
+    }
+
+    /**
+     * One server of the scenario, with every world of the scenario and players of its own
+     */
+    private final class Node {
+
+        private final StubServer server;
+        private final SleepVoteManager manager;
+        private final ScriptedAFKProvider afkProvider;
+        private final List<StubServer.StubWorld> worlds;
+        private final List<StubServer.StubPlayer> players;
+        private int mornings;
+
+        private Node(int index) {
+            server = StubServer.install();
+            SleepVote sleepVote = server.newPlugin();
+            Map<String, Object> config = new HashMap<>();
+            config.put("ignore_afk_players", true);
+            config.put("idle_timeout_ticks", 0); // AFK changes are scripted instead
+            config.put("enable_logging", false);
+            if (network != null) {
+                server.provideService(ClusterTransport.class, network.newTransport());
+                config.put("cluster.enabled", true);
+                config.put("cluster.node_id", "server" + index);
+                config.put("cluster.coordinator", index == 0);
+            }
+            manager = new SleepVoteManager(sleepVote, StubServer.loadConfig(sleepVote.getLogger(), config));
+            afkProvider = new ScriptedAFKProvider();
+            manager.getAFKManager().addProvider(afkProvider);
+
+            worlds = new ArrayList<>();
+            players = new ArrayList<>();
+            for (int w = 0; w < scenario.worlds; w++) {
+                StubServer.StubWorld world = server.createWorld("world" + w); // The cluster matches worlds by name
+                world.worldTime = NIGHT_START + random.nextInt(500);
+                worlds.add(world);
+                for (int p = 0; p < scenario.playersPerWorld; p++) {
+                    StubServer.StubPlayer player = server.createPlayer("player" + index + "_" + w + "_" + p, world);
+                    manager.onPlayerJoin(null, player.player);
+                    players.add(player);
+                }
+            }
+        }
+
+        /**
+         * Points Sponge at this server before it is driven, unless it is the only one
+         */
+        private void activate() {
+            if (network != null) {
+                server.activate();
+            }
+        }
+    }
+
+    static final class Report {
+
+        private final Scenario scenario;
+        private final int ticks;
+        private final int playerCount;
+        private final int worldCount;
+        private final long[] cpuNanos;
+        private final long[] allocatedBytes;
+        private final List<Integer> timesToSkip;
+        private final long messages;
+        private final long sounds;
+        private final int[] mornings; // Per server
+        private final long clusterMessages;
+        private final long clusterMessagesLost;
+
+        private Report(Scenario scenario, int ticks, int playerCount, int worldCount, long[] cpuNanos, long[] allocatedBytes,
+                       List<Integer> timesToSkip, long messages, long sounds, int[] mornings, long clusterMessages, long clusterMessagesLost) {
+            this.scenario = scenario;
+            this.ticks = ticks;
+            this.playerCount = playerCount;
+            this.worldCount = worldCount;
+            this.cpuNanos = cpuNanos;
+            this.allocatedBytes = allocatedBytes;
+            this.timesToSkip = timesToSkip;
+            this.messages = messages;
+            this.sounds = sounds;
+            this.mornings = mornings;
+            this.clusterMessages = clusterMessages;
+            this.clusterMessagesLost = clusterMessagesLost;
+        }
+
+        void print(Consumer<String> out) {
+            long[] sortedCpu = cpuNanos.clone();
+            Arrays.sort(sortedCpu);
+            int[] sortedSkips = timesToSkip.stream().mapToInt(Integer::intValue).sorted().toArray();
+
+            out.accept(String.format(Locale.ROOT, "Scenario %s: %d worlds, %d players, %d ticks", scenario.name, worldCount, playerCount, ticks));
+            out.accept(String.format(Locale.ROOT, "  CPU per tick (us):        mean %.1f, p50 %.1f, p99 %.1f, max %.1f",
+                    Arrays.stream(cpuNanos).average().orElse(0) / 1000,
+                    percentile(sortedCpu, 0.50) / 1000.0,
+                    percentile(sortedCpu, 0.99) / 1000.0,
+                    sortedCpu.length > 0 ? sortedCpu[sortedCpu.length - 1] / 1000.0 : 0));
+            out.accept(String.format(Locale.ROOT, "  Allocated per tick (KiB): mean %.1f, total %.1f MiB",
+                    Arrays.stream(allocatedBytes).average().orElse(0) / 1024,
+                    Arrays.stream(allocatedBytes).sum() / (1024.0 * 1024.0)));
+            out.accept(String.format(Locale.ROOT, "  Nights skipped:           %d, ticks from first sleeper to morning: mean %.1f, p50 %d, max %d",
+                    sortedSkips.length,
+                    Arrays.stream(sortedSkips).average().orElse(0),
+                    sortedSkips.length > 0 ? sortedSkips[sortedSkips.length / 2] : 0,
+                    sortedSkips.length > 0 ? sortedSkips[sortedSkips.length - 1] : 0));
+            out.accept(String.format(Locale.ROOT, "  Delivered:                %d messages, %d sounds", messages, sounds));
+            if (mornings.length > 1) { // Every server of the cluster should see the same mornings
+                out.accept(String.format(Locale.ROOT, "  Cluster:                  %d servers, mornings per server %s, %d messages sent, %d lost",
+                        mornings.length, Arrays.toString(mornings), clusterMessages, clusterMessagesLost));
+            }
+        }
+
+        static long percentile(long[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            return sorted[Math.min((int) (sorted.length * percentile), sorted.length - 1)];
+        }
+    }
+}
@@ -0,0 +1,580 @@
+package io.github.icohedron.sleepvote;
+
+import com.flowpowered.math.vector.Vector3d;
+import ninja.leaping.configurate.ConfigurationNode;
+import ninja.leaping.configurate.hocon.HoconConfigurationLoader;
+import org.slf4j.Logger;
+import org.slf4j.helpers.NOPLogger;
+import org.spongepowered.api.Game;
+import org.spongepowered.api.GameRegistry;
+import org.spongepowered.api.Server;
+import org.spongepowered.api.Sponge;
+import org.spongepowered.api.data.key.Keys;
+import org.spongepowered.api.data.manipulator.mutable.entity.GameModeData;
+import org.spongepowered.api.entity.Transform;
+import org.spongepowered.api.entity.living.player.Player;
+import org.spongepowered.api.entity.living.player.gamemode.GameMode;
+import org.spongepowered.api.entity.living.player.gamemode.GameModes;
+import org.spongepowered.api.event.entity.MoveEntityEvent;
+import org.spongepowered.api.plugin.PluginContainer;
+import org.spongepowered.api.plugin.PluginManager;
+import org.spongepowered.api.scheduler.Task;
+import org.spongepowered.api.service.ServiceManager;
+import org.spongepowered.api.util.AABB;
+import org.spongepowered.api.world.Location;
+import org.spongepowered.api.world.World;
+import org.spongepowered.api.world.storage.WorldProperties;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * A headless, single-threaded stand-in for a Sponge server, just complete enough to run a {@link SleepVoteManager}.
+ * Worlds, players and the scheduler are plain in-memory objects exposed through {@link Proxy} implementations of
+ * the Sponge interfaces, so no Minecraft server is needed. Scheduled tasks, async or not, only run when {@link #tick()} is called.
+ * <p>
+ * Several stub servers can exist at once (e.g. the servers of a cluster), but the static {@link Sponge} accessors only
+ * point at one of them. Call {@link #activate()} before driving another one.
+ */
+final class StubServer {
+
+    private static final Object[] NO_ARGS = new Object[0];
+    static final Object UNHANDLED = new Object();
+
+    private static final AABB STANDING_BOX = new AABB(new Vector3d(0, 0, 0), new Vector3d(0.6, 1.8, 0.6));
+    private static final AABB SLEEPING_BOX = new AABB(new Vector3d(0, 0, 0), new Vector3d(0.2, 0.2, 0.2));
+
+    private final Map<UUID, StubWorld> worlds;
+    private final Map<UUID, StubPlayer> players;
+    private final List<StubTask> tasks;
+    private final Map<Class<?>, Object> providedServices;
+    private int currentTick;
+    private boolean nucleusPresent;
+
+    private final Server server;
+    private final Map<Class<?>, Object> services;
+
+    private StubServer() {
+        worlds = new LinkedHashMap<>();
+        players = new LinkedHashMap<>();
+        tasks = new ArrayList<>();
+        providedServices = new HashMap<>();
+        services = new HashMap<>();
+        server = proxy(Server.class, (self, name, args) -> {
+            switch (name) {
+                case "getWorlds":
+                    return worldViews();
+                case "getWorld":
+                    if (args[0] instanceof UUID) {
+                        return Optional.ofNullable(worlds.get(args[0])).map(world -> world.world);
+                    }
+                    return worlds.values().stream().filter(world -> world.name.equals(args[0])).findFirst().map(world -> world.world);
+                case "getPlayer":
+                    if (args[0] instanceof UUID) {
+                        return Optional.ofNullable(players.get(args[0])).map(player -> player.player);
+                    }
+                    return players.values().stream().filter(player -> player.name.equals(args[0])).findFirst().map(player -> player.player);
+                case "getOnlinePlayers":
+                    return playerViews();
+                case "getRunningTimeTicks":
+                    return currentTick;
+                case "isMainThread":
+                    return true; // Everything runs on the thread calling tick()
+                default:
+                    return UNHANDLED;
+            }
+        });
+    }
+
+    /**
+     * Creates a new stub server and points the static {@link Sponge} accessors at it
+     */
+    static StubServer install() {
+        StubServer stubServer = new StubServer();
+        stubServer.createServices();
+        stubServer.activate();
+        return stubServer;
+    }
+
+    private void createServices() {
+        GameRegistry registry = proxy(GameRegistry.class, (self, name, args) -> {
+            if (name.equals("createBuilder") && args[0] == Task.Builder.class) {
+                return newTaskBuilder();
+            }
+            return UNHANDLED;
+        });
+        Game game = proxy(Game.class, (self, name, args) -> {
+            switch (name) {
+                case "getServer":
+                    return server;
+                case "isServerAvailable":
+                    return true;
+                case "getRegistry":
+                    return registry;
+                default:
+                    return UNHANDLED;
+            }
+        });
+
+        services.put(Game.class, game);
+        services.put(GameRegistry.class, registry);
+        services.put(Server.class, server);
+        services.put(PluginManager.class, proxy(PluginManager.class, (self, name, args) -> {
+            boolean nucleus = nucleusPresent && "nucleus".equals(args.length > 0 ? args[0] : null);
+            switch (name) {
+                case "getPlugin":
+                    return nucleus ? Optional.of(proxy(PluginContainer.class, (container, method, containerArgs) -> UNHANDLED)) : Optional.empty();
+                case "isLoaded":
+                    return nucleus;
+                default:
+                    return UNHANDLED;
+            }
+        }));
+        services.put(ServiceManager.class, proxy(ServiceManager.class, (self, name, args) -> {
+            if (name.equals("provide")) {
+                return Optional.ofNullable(providedServices.get(args[0]));
+            }
+            return UNHANDLED;
+        }));
+    }
+
+    /**
+     * Points the static {@link Sponge} accessors at this server
+     */
+    void activate() {
+        // Every other service (event manager, ...) is a proxy that does nothing
+        try {
+            for (Field field : Sponge.class.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()) && !Modifier.isFinal(field.getModifiers()) && field.getType().isInterface()) {
+                    field.setAccessible(true);
+                    field.set(null, services.computeIfAbsent(field.getType(), type -> proxy(type, (self, name, args) -> UNHANDLED)));
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Failed to install the stub server", e);
+        }
+    }
+
+    /**
+     * Makes the service manager provide the given implementation, like another plugin would
+     */
+    <T> void provideService(Class<T> type, T implementation) {
+        providedServices.put(type, implementation);
+    }
+
+    /**
+     * Whether the plugin manager should report Nucleus as installed, which enables the AFK integration
+     */
+    void setNucleusPresent(boolean nucleusPresent) {
+        this.nucleusPresent = nucleusPresent;
+    }
+
+    /**
+     * Creates a plugin instance as Sponge would, with a no-op logger and a temporary configuration directory
+     */
+    SleepVote newPlugin() {
+        try {
+            SleepVote sleepVote = new SleepVote();
+            setField(sleepVote, "logger", NOPLogger.NOP_LOGGER);
+            setField(sleepVote, "configurationDirectory", Files.createTempDirectory("sleepvote"));
+            return sleepVote;
+        } catch (IOException | ReflectiveOperationException e) {
+            throw new IllegalStateException("Failed to create the plugin", e);
+        }
+    }
+
+    /**
+     * Loads the default configuration file, with the given values overriding its defaults
+     */
+    static SVConfig loadConfig(Logger logger, Map<String, Object> overrides) {
+        try {
+            ConfigurationNode root = HoconConfigurationLoader.builder()
+                    .setURL(StubServer.class.getResource("/assets/sleepvote/default_configuration.properties"))
+                    .build()
+                    .load();
+            for (Map.Entry<String, Object> entry : overrides.entrySet()) {
+                root.getNode((Object[]) entry.getKey().split("\\.")).setValue(entry.getValue());
+            }
+            return SVConfig.load(root, logger);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to load the default configuration", e);
+        }
+    }
+
+    private static void setField(Object target, String name, Object value) throws ReflectiveOperationException {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    // Worlds and players
+
+    StubWorld createWorld(String name) {
+        StubWorld world = new StubWorld(name);
+        worlds.put(world.uuid, world);
+        return world;
+    }
+
+    /**
+     * Creates a player that is online in the given world. The caller is responsible for firing the join event
+     */
+    StubPlayer createPlayer(String name, StubWorld world) {
+        StubPlayer player = new StubPlayer(name, world);
+        players.put(player.uuid, player);
+        world.players.add(player.player);
+        return player;
+    }
+
+    /**
+     * Takes the player offline. The caller is responsible for firing the disconnect event beforehand
+     */
+    void removePlayer(StubPlayer player) {
+        players.remove(player.uuid);
+        player.world.players.remove(player.player);
+        player.online = false;
+    }
+
+    /**
+     * Moves the player to another world. The caller is responsible for firing the teleport event beforehand
+     */
+    void movePlayer(StubPlayer player, StubWorld world) {
+        player.world.players.remove(player.player);
+        player.world = world;
+        world.players.add(player.player);
+    }
+
+    /**
+     * @return an event for the player teleporting from their current world to the given one. Only the transforms and target are filled in
+     */
+    static MoveEntityEvent.Teleport teleportEvent(StubPlayer player, StubWorld world) {
+        World from = player.world.world;
+        World to = world.world;
+        return proxy(MoveEntityEvent.Teleport.class, (self, method, args) -> {
+            switch (method) {
+                case "getFromTransform":
+                    return new Transform<>(from, Vector3d.ZERO);
+                case "getToTransform":
+                    return new Transform<>(to, Vector3d.ZERO);
+                case "getTargetEntity":
+                    return player.player;
+                default:
+                    return UNHANDLED;
+            }
+        });
+    }
+
+    Collection<StubWorld> getWorlds() {
+        return Collections.unmodifiableCollection(worlds.values());
+    }
+
+    Collection<StubPlayer> getPlayers() {
+        return Collections.unmodifiableCollection(players.values());
+    }
+
+    private Collection<World> worldViews() {
+        List<World> views = new ArrayList<>(worlds.size());
+        worlds.values().forEach(world -> views.add(world.world));
+        return views;
+    }
+
+    private Collection<Player> playerViews() {
+        List<Player> views = new ArrayList<>(players.size());
+        players.values().forEach(player -> views.add(player.player));
+        return views;
+    }
+
+    // Scheduler
+
+    int getCurrentTick() {
+        return currentTick;
+    }
+
+    /**
+     * Advances the server by one tick, running every task that is due on the calling thread
+     */
+    void tick() {
+        currentTick++;
+        List<StubTask> due = new ArrayList<>();
+        for (StubTask task : tasks) {
+            if (!task.cancelled && task.nextRun <= currentTick) {
+                due.add(task);
+            }
+        }
+        for (StubTask task : due) {
+            if (!task.cancelled) { // May have been cancelled by a task that ran before it
+                task.run();
+                if (task.interval > 0) {
+                    task.nextRun += task.interval;
+                } else {
+                    task.cancelled = true;
+                }
+            }
+        }
+        for (Iterator<StubTask> iterator = tasks.iterator(); iterator.hasNext(); ) {
+            if (iterator.next().cancelled) {
+                iterator.remove();
+            }
+        }
+    }
+
+    void tick(int ticks) {
+        for (int i = 0; i < ticks; i++) {
+            tick();
+        }
+    }
+
+    int getPendingTaskCount() {
+        return tasks.size();
+    }
+
+    private Task.Builder newTaskBuilder() {
+        StubTask stubTask = new StubTask();
+        return proxy(Task.Builder.class, (self, name, args) -> {
+            switch (name) {
+                case "execute":
+                    stubTask.executor = args[0];
+                    return self;
+                case "async":
+                    return self;
+                case "delayTicks":
+                    stubTask.delay = (int) (long) args[0];
+                    return self;
+                case "delay":
+                    stubTask.delay = (int) (((TimeUnit) args[1]).toMillis((long) args[0]) / 50);
+                    return self;
+                case "intervalTicks":
+                    stubTask.interval = (int) (long) args[0];
+                    return self;
+                case "interval":
+                    stubTask.interval = (int) Math.max(((TimeUnit) args[1]).toMillis((long) args[0]) / 50, 1);
+                    return self;
+                case "submit":
+                    stubTask.nextRun = currentTick + Math.max(stubTask.delay, 1); // Like Sponge, a task without a delay runs on the next tick
+                    tasks.add(stubTask);
+                    return stubTask.task;
+                default:
+                    return self; // name(String) and the like
+            }
+        });
+    }
+
+    private static final class StubTask {
+
+        private Object executor;
+        private int delay;
+        private int interval;
+        private int nextRun;
+        private boolean cancelled;
+
+        private final Task task = proxy(Task.class, (self, name, args) -> {
+            if (name.equals("cancel")) {
+                boolean wasCancelled = cancelled;
+                cancelled = true;
+                return !wasCancelled;
+            }
+            return UNHANDLED;
+        });
+
+        @SuppressWarnings("unchecked")
+        private void run() {
+            if (executor instanceof Consumer) {
+                ((Consumer<Task>) executor).accept(task);
+            } else {
+                ((Runnable) executor).run();
+            }
+        }
+    }
+
+    // Stub worlds and players
+
+    static final class StubWorld {
+
+        final UUID uuid;
+        final String name;
+        final List<Player> players;
+        final World world;
+        long worldTime;
+        boolean raining;
+        boolean thundering;
+
+        private StubWorld(String name) {
+            this.uuid = UUID.randomUUID();
+            this.name = name;
+            this.players = new ArrayList<>();
+            this.worldTime = 13000; // Night
+            WorldProperties properties = proxy(WorldProperties.class, (self, method, args) -> {
+                switch (method) {
+                    case "getUniqueId":
+                        return uuid;
+                    case "getWorldName":
+                        return name;
+                    case "getWorldTime":
+                        return worldTime;
+                    case "setWorldTime":
+                        worldTime = (long) args[0];
+                        return null;
+                    case "setRaining":
+                        raining = (boolean) args[0];
+                        return null;
+                    case "setThundering":
+                        thundering = (boolean) args[0];
+                        return null;
+                    case "isRaining":
+                        return raining;
+                    case "isThundering":
+                        return thundering;
+                    default:
+                        return UNHANDLED;
+                }
+            });
+            List<Player> playersView = Collections.unmodifiableList(players);
+            this.world = proxy(World.class, (self, method, args) -> {
+                switch (method) {
+                    case "getUniqueId":
+                        return uuid;
+                    case "getName":
+                        return name;
+                    case "getPlayers":
+                        return playersView;
+                    case "getProperties":
+                        return properties;
+                    default:
+                        return UNHANDLED;
+                }
+            });
+        }
+    }
+
+    static final class StubPlayer {
+
+        final UUID uuid;
+        final String name;
+        final Player player;
+        StubWorld world;
+        boolean online;
+        boolean inBed;
+        boolean vanished;
+        boolean admin;
+        GameMode gameMode;
+        long messagesReceived;
+        long soundsReceived;
+
+        private StubPlayer(String name, StubWorld world) {
+            this.uuid = UUID.randomUUID();
+            this.name = name;
+            this.world = world;
+            this.online = true;
+            this.gameMode = GameModes.SURVIVAL;
+            GameModeData gameModeData = proxy(GameModeData.class, (self, method, args) ->
+                    method.equals("get") ? Optional.of(gameMode) : UNHANDLED);
+            this.player = proxy(Player.class, (self, method, args) -> {
+                switch (method) {
+                    case "getUniqueId":
+                        return uuid;
+                    case "getName":
+                        return name;
+                    case "getWorld":
+                        return this.world.world;
+                    case "isOnline":
+                        return online;
+                    case "hasPermission":
+                        return admin && "sleepvote.hidden".equals(args[args.length - 1]);
+                    case "getGameModeData":
+                        return gameModeData;
+                    case "get":
+                        if (args[0] == Keys.VANISH) {
+                            return Optional.of(vanished);
+                        }
+                        if (args[0] == Keys.GAME_MODE) {
+                            return Optional.of(gameMode);
+                        }
+                        return Optional.empty();
+                    case "getBoundingBox":
+                        return Optional.of(inBed ? SLEEPING_BOX : STANDING_BOX);
+                    case "getLocation":
+                        return new Location<>(this.world.world, Vector3d.ZERO);
+                    case "sendMessage":
+                        messagesReceived++;
+                        return null;
+                    case "playSound":
+                        soundsReceived++;
+                        return null;
+                    default:
+                        return UNHANDLED; // setSleepingIgnored and the like
+                }
+            });
+        }
+    }
+
+    // Proxies
+
+    @FunctionalInterface
+    interface Handler {
+
+        /**
+         * @return the result of the call, or {@link #UNHANDLED} to return the default value of the return type
+         */
+        Object handle(Object self, String method, Object[] args);
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T proxy(Class<T> type, Handler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (self, method, args) -> {
+            switch (method.getName()) {
+                case "equals":
+                    return self == args[0];
+                case "hashCode":
+                    return System.identityHashCode(self);
+                case "toString":
+                    return "Stub" + type.getSimpleName();
+            }
+            Object result = handler.handle(self, method.getName(), args == null ? NO_ARGS : args);
+            return result != UNHANDLED ? result : defaultValue(method.getReturnType());
+        });
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == double.class) {
+            return 0.0d;
+        } else if (type == float.class) {
+            return 0.0f;
+        } else if (type == short.class) {
+            return (short) 0;
+        } else if (type == byte.class) {
+            return (byte) 0;
+        } else if (type == char.class) {
+            return (char) 0;
+        } else if (type == Optional.class) {
+            return Optional.empty();
+        } else if (type == Set.class) {
+            return Collections.emptySet();
+        } else if (type == Map.class) {
+            return Collections.emptyMap();
+        } else if (type == Collection.class || type == List.class) {
+            return Collections.emptyList();
+        }
+        return null;
+    }
+}
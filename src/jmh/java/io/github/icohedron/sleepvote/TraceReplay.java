@@ -0,0 +1,364 @@
+package io.github.icohedron.sleepvote;
+
+import org.spongepowered.api.entity.living.player.gamemode.GameMode;
+import org.spongepowered.api.entity.living.player.gamemode.GameModes;
+import org.spongepowered.api.event.entity.MoveEntityEvent;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Replays a trace written by {@link EventTraceRecorder} against a {@link SleepVoteManager} on a {@link StubServer},
+ * tick by tick, and compares the nights it skips with those skipped on the recording server. Replays are deterministic,
+ * so a problem seen in production can be reproduced and profiled offline.
+ * <p>
+ * The configuration is not part of the trace. The defaults are used, with any 'key=value' overrides given after the path.
+ * <p>
+ * Usage: TraceReplay path [key=value ...], e.g. './gradlew replay -Ptrace=traces/trace-20190101-120000.svt -Poverrides=required_percent_sleeping=0.5'
+ */
+public final class TraceReplay {
+
+    private static final int DAY_LENGTH = 24000;
+    private static final int SKIP_TOLERANCE_TICKS = 40; // The voting loop and bed entry delays of the recording server aren't ticked in lockstep
+    private static final GameMode[] GAME_MODES = {GameModes.SURVIVAL, GameModes.CREATIVE, GameModes.ADVENTURE, GameModes.SPECTATOR};
+
+    private final StubServer server;
+    private final SleepVoteManager manager;
+    private final ScriptedAFKProvider afkProvider;
+
+    private final List<StubServer.StubWorld> worlds; // By trace id
+    private final List<StubServer.StubPlayer> players; // By trace id
+
+    private final List<Skip> recordedSkips;
+    private final List<Skip> replayedSkips;
+    private final List<Long> cpuNanos;
+    private final List<Long> allocatedBytes;
+    private int recordCount;
+
+    TraceReplay(Map<String, Object> overrides) {
+        server = StubServer.install();
+        SleepVote sleepVote = server.newPlugin();
+        Map<String, Object> config = new HashMap<>(overrides);
+        config.put("ignore_afk_players", true);
+        config.put("idle_timeout_ticks", 0); // AFK changes come from the trace instead
+        config.put("enable_logging", false);
+        config.put("trace_recording", false);
+        manager = new SleepVoteManager(sleepVote, StubServer.loadConfig(sleepVote.getLogger(), config));
+        afkProvider = new ScriptedAFKProvider();
+        manager.getAFKManager().addProvider(afkProvider);
+
+        worlds = new ArrayList<>();
+        players = new ArrayList<>();
+        recordedSkips = new ArrayList<>();
+        replayedSkips = new ArrayList<>();
+        cpuNanos = new ArrayList<>();
+        allocatedBytes = new ArrayList<>();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage: TraceReplay path [key=value ...]");
+            return;
+        }
+
+        Map<String, Object> overrides = new HashMap<>();
+        for (int i = 1; i < args.length; i++) {
+            String[] entry = args[i].split("=", 2);
+            overrides.put(entry[0], parseValue(entry.length > 1 ? entry[1] : "true"));
+        }
+
+        Path path = Paths.get(args[0]);
+        new TraceReplay(overrides).replay(path).print(System.out::println);
+    }
+
+    private static Object parseValue(String value) {
+        if (value.equals("true") || value.equals("false")) {
+            return Boolean.parseBoolean(value);
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            // Not an integer
+        }
+        try {
+            return Double.parseDouble(value); // e.g. required_percent_sleeping=0.5
+        } catch (NumberFormatException e) {
+            return value;
+        }
+    }
+
+    Report replay(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != EventTraceRecorder.MAGIC) {
+                throw new IOException("\"" + path + "\" is not an event trace");
+            }
+            readVarInt(in); // The running tick when recording started. Replays always start at 0
+            long startMillis = in.readLong();
+
+            try {
+                while (true) {
+                    int type = in.read();
+                    if (type < 0) {
+                        break;
+                    }
+                    replayRecord((byte) type, in);
+                    recordCount++;
+                }
+            } catch (EOFException e) {
+                // The server stopped in the middle of writing a record
+            }
+
+            return new Report(path, startMillis, this);
+        }
+    }
+
+    private void replayRecord(byte type, DataInputStream in) throws IOException {
+        switch (type) {
+            case EventTraceRecorder.TICK:
+                tick(readVarInt(in));
+                break;
+            case EventTraceRecorder.WORLD: {
+                readVarInt(in); // Ids are handed out in order
+                in.readLong();
+                in.readLong();
+                StubServer.StubWorld world = server.createWorld(readString(in));
+                world.worldTime = in.readLong();
+                worlds.add(world);
+                break;
+            }
+            case EventTraceRecorder.JOIN: {
+                readVarInt(in);
+                in.readLong();
+                in.readLong();
+                String name = readString(in);
+                StubServer.StubWorld world = worlds.get(readVarInt(in));
+                StubServer.StubPlayer player = server.createPlayer(name, world);
+                player.gameMode = GAME_MODES[in.readByte()];
+                player.vanished = in.readBoolean();
+                player.admin = in.readBoolean();
+                boolean hidden = in.readBoolean();
+                players.add(player);
+                manager.onPlayerJoin(null, player.player);
+                if (hidden) {
+                    manager.ignorePlayer(player.player);
+                }
+                break;
+            }
+            case EventTraceRecorder.QUIT: {
+                StubServer.StubPlayer player = readPlayer(in);
+                manager.onPlayerDisconnect(null, player.player);
+                server.removePlayer(player);
+                break;
+            }
+            case EventTraceRecorder.BED_ENTER: {
+                StubServer.StubPlayer player = readPlayer(in);
+                player.inBed = true;
+                manager.onPreSleepingEvent(null, player.player);
+                break;
+            }
+            case EventTraceRecorder.BED_EXIT: {
+                StubServer.StubPlayer player = readPlayer(in);
+                player.inBed = false;
+                manager.onPostSleepingEvent(null, player.player);
+                break;
+            }
+            case EventTraceRecorder.TELEPORT:
+            case EventTraceRecorder.RESPAWN: { // The stub players keep their entity, so a respawn is just a teleport
+                StubServer.StubPlayer player = readPlayer(in);
+                StubServer.StubWorld world = worlds.get(readVarInt(in));
+                player.inBed = false;
+                MoveEntityEvent.Teleport event = StubServer.teleportEvent(player, world);
+                manager.onTeleportEvent(event, player.player);
+                server.movePlayer(player, world);
+                break;
+            }
+            case EventTraceRecorder.GAME_MODE: {
+                StubServer.StubPlayer player = readPlayer(in);
+                player.gameMode = GAME_MODES[in.readByte()];
+                manager.updateEligibility(player.player);
+                break;
+            }
+            case EventTraceRecorder.VANISH: {
+                StubServer.StubPlayer player = readPlayer(in);
+                player.vanished = in.readBoolean();
+                manager.updateEligibility(player.player);
+                break;
+            }
+            case EventTraceRecorder.AFK: {
+                StubServer.StubPlayer player = readPlayer(in);
+                afkProvider.set(player.player, in.readBoolean());
+                break;
+            }
+            case EventTraceRecorder.HIDE: {
+                StubServer.StubPlayer player = readPlayer(in);
+                if (in.readBoolean()) {
+                    manager.ignorePlayer(player.player);
+                } else {
+                    manager.unignorePlayer(player.player);
+                }
+                break;
+            }
+            case EventTraceRecorder.SKIP:
+                recordedSkips.add(new Skip(server.getCurrentTick(), readVarInt(in)));
+                break;
+            default:
+                throw new IOException("Unknown record type " + type + " after " + recordCount + " records");
+        }
+    }
+
+    /**
+     * Runs the server for the given number of ticks, advancing the time of every world like the recording server did
+     */
+    private void tick(int ticks) {
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long[] timesBefore = new long[worlds.size()];
+
+        for (int i = 0; i < ticks; i++) {
+            for (int w = 0; w < worlds.size(); w++) {
+                timesBefore[w] = worlds.get(w).worldTime;
+            }
+
+            long cpuBefore = threadMXBean.getCurrentThreadCpuTime();
+            long allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+            server.tick();
+            cpuNanos.add(threadMXBean.getCurrentThreadCpuTime() - cpuBefore);
+            allocatedBytes.add(threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore);
+
+            for (int w = 0; w < worlds.size(); w++) {
+                StubServer.StubWorld world = worlds.get(w);
+                if (world.worldTime != timesBefore[w] && world.worldTime % DAY_LENGTH == 0) { // Only the plugin sets the time
+                    replayedSkips.add(new Skip(server.getCurrentTick(), w));
+                }
+                world.worldTime++;
+            }
+        }
+    }
+
+    private StubServer.StubPlayer readPlayer(DataInputStream in) throws IOException {
+        return players.get(readVarInt(in));
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length integer");
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static final class Skip {
+
+        private final int tick;
+        private final int worldId;
+
+        private Skip(int tick, int worldId) {
+            this.tick = tick;
+            this.worldId = worldId;
+        }
+    }
+
+    static final class Report {
+
+        private final Path path;
+        private final long startMillis;
+        private final int ticks;
+        private final int records;
+        private final int worldCount;
+        private final int playerCount;
+        private final long[] cpuNanos;
+        private final long[] allocatedBytes;
+        private final List<Skip> recordedSkips;
+        private final List<Skip> replayedSkips;
+        private final List<StubServer.StubWorld> worlds;
+
+        private Report(Path path, long startMillis, TraceReplay replay) {
+            this.path = path;
+            this.startMillis = startMillis;
+            this.ticks = replay.server.getCurrentTick();
+            this.records = replay.recordCount;
+            this.worldCount = replay.worlds.size();
+            this.playerCount = replay.players.size();
+            this.cpuNanos = replay.cpuNanos.stream().mapToLong(Long::longValue).toArray();
+            this.allocatedBytes = replay.allocatedBytes.stream().mapToLong(Long::longValue).toArray();
+            this.recordedSkips = replay.recordedSkips;
+            this.replayedSkips = replay.replayedSkips;
+            this.worlds = replay.worlds;
+        }
+
+        void print(Consumer<String> out) {
+            long[] sortedCpu = cpuNanos.clone();
+            Arrays.sort(sortedCpu);
+
+            out.accept(String.format(Locale.ROOT, "Trace %s, recorded %s: %d records, %d worlds, %d players, %d ticks",
+                    path, new Date(startMillis), records, worldCount, playerCount, ticks));
+            out.accept(String.format(Locale.ROOT, "  CPU per tick (us):        mean %.1f, p50 %.1f, p99 %.1f, max %.1f",
+                    Arrays.stream(cpuNanos).average().orElse(0) / 1000,
+                    Simulator.Report.percentile(sortedCpu, 0.50) / 1000.0,
+                    Simulator.Report.percentile(sortedCpu, 0.99) / 1000.0,
+                    sortedCpu.length > 0 ? sortedCpu[sortedCpu.length - 1] / 1000.0 : 0));
+            out.accept(String.format(Locale.ROOT, "  Allocated per tick (KiB): mean %.1f, total %.1f MiB",
+                    Arrays.stream(allocatedBytes).average().orElse(0) / 1024,
+                    Arrays.stream(allocatedBytes).sum() / (1024.0 * 1024.0)));
+            out.accept(String.format(Locale.ROOT, "  Nights skipped:           %d recorded, %d replayed", recordedSkips.size(), replayedSkips.size()));
+
+            Skip divergence = firstDivergence();
+            if (divergence == null) {
+                out.accept("  The replay skipped the same nights as the recording server");
+            } else {
+                out.accept(String.format(Locale.ROOT, "  First divergence:         tick %d in world '%s', skipped only by the %s",
+                        divergence.tick, worlds.get(divergence.worldId).name, recordedSkips.contains(divergence) ? "recording server" : "replay"));
+            }
+        }
+
+        /**
+         * @return the earliest skip of either side without a matching skip of the same world, within the tolerance, on the other side
+         */
+        private Skip firstDivergence() {
+            List<Skip> unmatchedReplayed = new ArrayList<>(replayedSkips);
+            Skip first = null;
+            for (Skip recorded : recordedSkips) {
+                Skip match = unmatchedReplayed.stream()
+                        .filter(replayed -> replayed.worldId == recorded.worldId && Math.abs(replayed.tick - recorded.tick) <= SKIP_TOLERANCE_TICKS)
+                        .findFirst()
+                        .orElse(null);
+                if (match != null) {
+                    unmatchedReplayed.remove(match);
+                } else if (first == null || recorded.tick < first.tick) {
+                    first = recorded;
+                }
+            }
+            for (Skip replayed : unmatchedReplayed) {
+                if (first == null || replayed.tick < first.tick) {
+                    first = replayed;
+                }
+            }
+            return first;
+        }
+    }
+}
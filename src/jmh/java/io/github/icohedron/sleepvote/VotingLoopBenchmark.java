@@ -0,0 +1,38 @@
+package io.github.icohedron.sleepvote;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Collections;
+
+/**
+ * One server tick in which a world with half of its players sleeping is recounted.
+ * Every player is required to sleep, so the night is never skipped
+ */
+@State(Scope.Benchmark)
+public class VotingLoopBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int players;
+
+    private BenchmarkServer benchmarkServer;
+
+    @Setup
+    public void setUp() {
+        benchmarkServer = new BenchmarkServer(players, players / 2, Collections.singletonMap("required_percent_sleeping", "1.0"));
+    }
+
+    @Benchmark
+    public void dirtyWorldPass() {
+        benchmarkServer.manager.markDirty(benchmarkServer.world.world);
+        benchmarkServer.server.tick();
+    }
+
+    @Benchmark
+    public void idlePass() {
+        benchmarkServer.server.tick();
+    }
+}
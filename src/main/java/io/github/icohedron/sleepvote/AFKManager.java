@@ -1,41 +1,78 @@
 package io.github.icohedron.sleepvote;
 
-import io.github.nucleuspowered.nucleus.api.events.NucleusAFKEvent;
+import io.github.icohedron.sleepvote.api.AFKProvider;
+import org.spongepowered.api.Sponge;
 import org.spongepowered.api.entity.living.player.Player;
-import org.spongepowered.api.event.Listener;
-import org.spongepowered.api.event.filter.cause.First;
-import org.spongepowered.api.event.network.ClientConnectionEvent;
 
-import java.util.HashSet;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+/**
+ * Combines the AFK state of every registered {@link AFKProvider}. A change in a player's AFK state
+ * immediately updates the eligible player count of their world, which is then recounted on its own.
+ */
 public class AFKManager {
 
-    private SleepVoteManager sleepVoteManager;
-    private Set<UUID> afkPlayers;
+    private final SleepVoteManager sleepVoteManager;
+    private final CopyOnWriteArrayList<AFKProvider> providers;
+    private final Set<UUID> afkPlayers; // Read from the asynchronous voting loop
 
     AFKManager(SleepVoteManager sleepVoteManager) {
-        afkPlayers = new HashSet<>();
         this.sleepVoteManager = sleepVoteManager;
+        providers = new CopyOnWriteArrayList<>();
+        afkPlayers = ConcurrentHashMap.newKeySet();
     }
 
-    @Listener
-    public void onPlayerGoingAFKEvent(NucleusAFKEvent.GoingAFK event, @First Player player) {
-        if (!sleepVoteManager.isInBed(player)) { // For all intents and purposes, a sleeping AFK player is technically not AFK
-            afkPlayers.add(player.getUniqueId());
-            // A player leaving a bed will trigger NucleusAFKEvent.ReturningFromAFK
+    /**
+     * Must be called from the main thread
+     */
+    void addProvider(AFKProvider provider) {
+        if (providers.addIfAbsent(provider)) {
+            provider.enable(this::onAFKChange);
         }
     }
 
-    @Listener
-    public void onPlayerReturingFromAFKEvent(NucleusAFKEvent.ReturningFromAFK event, @First Player player) {
-        afkPlayers.remove(player.getUniqueId());
+    /**
+     * Must be called from the main thread. Players who were only AFK according to the provider are no longer AFK
+     */
+    void removeProvider(AFKProvider provider) {
+        if (providers.remove(provider)) {
+            provider.disable();
+            for (UUID playerUuid : afkPlayers) {
+                Sponge.getServer().getPlayer(playerUuid).ifPresent(this::onAFKChange);
+            }
+        }
+    }
+
+    boolean hasProvider(Class<? extends AFKProvider> providerClass) {
+        return providers.stream().anyMatch(providerClass::isInstance);
+    }
+
+    /**
+     * Removes every provider of the given class, leaving those registered by other plugins
+     */
+    void removeProviders(Class<? extends AFKProvider> providerClass) {
+        for (AFKProvider provider : providers) {
+            if (providerClass.isInstance(provider)) {
+                removeProvider(provider);
+            }
+        }
+    }
+
+    private void onAFKChange(Player player) {
+        UUID playerUuid = player.getUniqueId();
+        // For all intents and purposes, a sleeping AFK player is technically not AFK. Leaving the bed counts as activity
+        boolean afk = !sleepVoteManager.isInBed(player) && providers.stream().anyMatch(provider -> provider.isAFK(playerUuid));
+        if (afk ? afkPlayers.add(playerUuid) : afkPlayers.remove(playerUuid)) {
+            sleepVoteManager.getTraceRecorder().recordAFK(player, afk);
+            sleepVoteManager.updateEligibility(player); // Marks only the player's world to be recounted
+        }
     }
 
-    @Listener
-    public void onPlayerDisconnect(ClientConnectionEvent event, @First Player player) {
-        afkPlayers.remove(player.getUniqueId());
+    void removePlayer(UUID playerUuid) {
+        afkPlayers.remove(playerUuid);
     }
 
     boolean isAFK(UUID playerUuid) {
@@ -0,0 +1,169 @@
+package io.github.icohedron.sleepvote;
+
+import org.spongepowered.api.entity.living.player.Player;
+import org.spongepowered.api.scheduler.Task;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * A hashed timing wheel that keeps track of every pending bed entry confirmation, driven by a single task
+ * running on the main thread every tick. Entries live in primitive arrays and are linked into the wheel slot of their
+ * deadline, so scheduling and cancelling are O(1) and don't allocate (besides the occasional growth of the arrays).
+ */
+class BedEntryScheduler {
+
+    static final long NONE = -1;
+
+    static final int WHEEL_SIZE = 128; // Must be a power of two. Larger than the bed entry delay, so that entries rarely wrap around
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final Consumer<Player> action;
+
+    private final int[] slotHeads;
+
+    // Entry storage. An entry is free when players[index] == null
+    private long[] deadlines;
+    private int[] next;
+    private int[] previous;
+    private int[] generations; // Bumped whenever an entry is released, so that stale handles can't cancel a reused entry
+    private Player[] players;
+
+    private int freeHead;
+    private int highWaterMark;
+
+    private long currentTick;
+
+    /**
+     * @param action run on the main thread with the player of every entry that reaches its deadline
+     */
+    BedEntryScheduler(SleepVote sleepVote, Consumer<Player> action) {
+        this(action);
+        Task.builder().execute(this::tick).intervalTicks(1).submit(sleepVote);
+    }
+
+    /**
+     * Without the task, so {@link #tick()} is left to the caller
+     */
+    BedEntryScheduler(Consumer<Player> action) {
+        this.action = action;
+
+        slotHeads = new int[WHEEL_SIZE];
+        Arrays.fill(slotHeads, -1);
+
+        deadlines = new long[INITIAL_CAPACITY];
+        next = new int[INITIAL_CAPACITY];
+        previous = new int[INITIAL_CAPACITY];
+        generations = new int[INITIAL_CAPACITY];
+        players = new Player[INITIAL_CAPACITY];
+        freeHead = -1;
+    }
+
+    /**
+     * Must be called from the main thread
+     *
+     * @return a handle that can be passed to {@link #cancel(long)}
+     */
+    long schedule(Player player, int delayTicks) {
+        int index = allocate();
+        long deadline = currentTick + Math.max(delayTicks, 1);
+        deadlines[index] = deadline;
+        players[index] = player;
+        link(index, (int) (deadline & WHEEL_MASK));
+        return ((long) generations[index] << 32) | index;
+    }
+
+    /**
+     * Cancels the entry if it is still pending. Does nothing for {@link #NONE} or entries that have already fired.
+     * Must be called from the main thread
+     */
+    void cancel(long handle) {
+        if (handle == NONE) {
+            return;
+        }
+        int index = (int) handle;
+        if (index < highWaterMark && generations[index] == (int) (handle >>> 32) && players[index] != null) {
+            unlink(index);
+            release(index);
+        }
+    }
+
+    /**
+     * Runs every tick on the main thread
+     */
+    void tick() {
+        currentTick++;
+        int slot = (int) (currentTick & WHEEL_MASK);
+
+        // First move every due entry out of the wheel, so that the action is free to schedule and cancel entries
+        int firing = -1;
+        int index = slotHeads[slot];
+        while (index != -1) {
+            int following = next[index];
+            if (deadlines[index] <= currentTick) {
+                unlink(index);
+                generations[index]++; // No longer cancellable
+                next[index] = firing;
+                firing = index;
+            }
+            index = following;
+        }
+
+        while (firing != -1) {
+            int following = next[firing];
+            Player player = players[firing];
+            release(firing);
+            action.accept(player);
+            firing = following;
+        }
+    }
+
+    private int allocate() {
+        if (freeHead != -1) {
+            int index = freeHead;
+            freeHead = next[index];
+            return index;
+        }
+
+        if (highWaterMark == players.length) {
+            int capacity = players.length * 2;
+            deadlines = Arrays.copyOf(deadlines, capacity);
+            next = Arrays.copyOf(next, capacity);
+            previous = Arrays.copyOf(previous, capacity);
+            generations = Arrays.copyOf(generations, capacity);
+            players = Arrays.copyOf(players, capacity);
+        }
+        return highWaterMark++;
+    }
+
+    private void release(int index) {
+        players[index] = null;
+        generations[index]++;
+        next[index] = freeHead;
+        freeHead = index;
+    }
+
+    private void link(int index, int slot) {
+        int head = slotHeads[slot];
+        next[index] = head;
+        previous[index] = -1;
+        if (head != -1) {
+            previous[head] = index;
+        }
+        slotHeads[slot] = index;
+    }
+
+    private void unlink(int index) {
+        int before = previous[index];
+        int after = next[index];
+        if (before != -1) {
+            next[before] = after;
+        } else {
+            slotHeads[(int) (deadlines[index] & WHEEL_MASK)] = after;
+        }
+        if (after != -1) {
+            previous[after] = before;
+        }
+    }
+}
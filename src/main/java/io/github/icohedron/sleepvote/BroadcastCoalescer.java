@@ -0,0 +1,88 @@
+package io.github.icohedron.sleepvote;
+
+import org.spongepowered.api.scheduler.Task;
+import org.spongepowered.api.world.World;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Merges the enter and exit bed messages of a world that happen within a short window into a single
+ * message and sound, so that a group of players going to bed together doesn't flood everyone's chat.
+ */
+class BroadcastCoalescer {
+
+    private final SleepVote sleepVote;
+    private final SleepVoteManager sleepVoteManager;
+
+    private final Map<UUID, PendingBroadcast> pendingBroadcasts;
+    private final Map<UUID, Task> flushTasks; // Of the open window of each world
+
+    BroadcastCoalescer(SleepVote sleepVote, SleepVoteManager sleepVoteManager) {
+        this.sleepVote = sleepVote;
+        this.sleepVoteManager = sleepVoteManager;
+        pendingBroadcasts = new ConcurrentHashMap<>();
+        flushTasks = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Queues a bed message for the world. The first message queued for a world opens a window of the given length,
+     * after which everything queued in the meantime is sent at once
+     */
+    void submit(World world, MessageTemplate message, String playerName, int windowTicks) {
+        PendingBroadcast pendingBroadcast = pendingBroadcasts.merge(world.getUniqueId(),
+                new PendingBroadcast(message, playerName, 1),
+                (pending, added) -> new PendingBroadcast(added.message, added.playerName, pending.events + 1));
+
+        if (pendingBroadcast.events == 1) {
+            flushTasks.put(world.getUniqueId(), // On the main thread, like every message
+                    Task.builder().execute(() -> flush(world)).delayTicks(windowTicks).submit(sleepVote));
+        }
+    }
+
+    /**
+     * Immediately sends whatever is queued for the world, if anything, and closes its window
+     */
+    void flush(World world) {
+        cancelFlushTask(world.getUniqueId()); // Otherwise it would cut the next window short when flushing early
+        PendingBroadcast pendingBroadcast = pendingBroadcasts.remove(world.getUniqueId());
+        if (pendingBroadcast == null) {
+            return;
+        }
+
+        if (pendingBroadcast.events == 1) {
+            sleepVoteManager.sendBedMessage(world, pendingBroadcast.message, pendingBroadcast.playerName);
+        } else {
+            sleepVoteManager.sendBedMessage(world, sleepVoteManager.getConfig().getSummaryMessage(), pendingBroadcast.playerName);
+        }
+    }
+
+    /**
+     * Forgets whatever is queued for the world, without sending it
+     */
+    void discard(UUID worldUuid) {
+        cancelFlushTask(worldUuid);
+        pendingBroadcasts.remove(worldUuid);
+    }
+
+    private void cancelFlushTask(UUID worldUuid) {
+        Task flushTask = flushTasks.remove(worldUuid);
+        if (flushTask != null) {
+            flushTask.cancel();
+        }
+    }
+
+    private static final class PendingBroadcast {
+
+        private final MessageTemplate message; // The most recent message
+        private final String playerName; // The player of the most recent message
+        private final int events;
+
+        private PendingBroadcast(MessageTemplate message, String playerName, int events) {
+            this.message = message;
+            this.playerName = playerName;
+            this.events = events;
+        }
+    }
+}
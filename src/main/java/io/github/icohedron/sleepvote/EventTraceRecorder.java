@@ -0,0 +1,378 @@
+package io.github.icohedron.sleepvote;
+
+import org.slf4j.Logger;
+import org.spongepowered.api.Sponge;
+import org.spongepowered.api.entity.living.player.Player;
+import org.spongepowered.api.entity.living.player.gamemode.GameMode;
+import org.spongepowered.api.entity.living.player.gamemode.GameModes;
+import org.spongepowered.api.data.key.Keys;
+import org.spongepowered.api.scheduler.Task;
+import org.spongepowered.api.world.World;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Records everything the {@link SleepVoteManager} reacts to (beds, teleports, game modes, vanishing, AFK, joins and quits)
+ * to a compact binary trace, so that problems seen in production can be replayed offline tick by tick.
+ * <p>
+ * Players and worlds are given small ids the first time they appear, and every number is written as a variable length
+ * integer, so most records take 2 or 3 bytes. Records are appended to an in-memory buffer under an uncontended lock,
+ * and a background task writes the buffer to disk once per second. The file has a lock of its own, so that recording
+ * never waits for the disk. Nothing is recorded unless tracing is enabled.
+ * <p>
+ * Format: "SVT1", the running tick and time (ms) when recording started, then records of a type byte followed by its fields.
+ */
+class EventTraceRecorder {
+
+    static final int MAGIC = 0x53565431; // "SVT1"
+
+    // Record types
+    static final byte TICK = 0; // ticks since the previous record
+    static final byte WORLD = 1; // world id, UUID, name, world time
+    static final byte JOIN = 2; // player id, UUID, name, world id, game mode, vanished, admin, hidden
+    static final byte QUIT = 3; // player id
+    static final byte BED_ENTER = 4; // player id
+    static final byte BED_EXIT = 5; // player id
+    static final byte TELEPORT = 6; // player id, world id
+    static final byte RESPAWN = 7; // player id, world id
+    static final byte GAME_MODE = 8; // player id, game mode
+    static final byte VANISH = 9; // player id, vanished
+    static final byte AFK = 10; // player id, afk
+    static final byte HIDE = 11; // player id, hidden
+    static final byte SKIP = 12; // world id
+
+    private static final int FLUSH_INTERVAL_TICKS = 20;
+
+    private final SleepVote sleepVote;
+    private final SleepVoteManager sleepVoteManager;
+    private final Logger logger;
+
+    // Guarded by this
+    private boolean recording;
+    private byte[] buffer;
+    private int position;
+    private int lastTick;
+    private final Map<UUID, Integer> playerIds;
+    private final Map<UUID, Integer> worldIds;
+    private Task flushTask;
+
+    // Guarded by fileLock, which is always acquired before this
+    private final Object fileLock;
+    private OutputStream out; // Null unless recording
+    private long bytesWritten;
+    private long maxBytes;
+
+    EventTraceRecorder(SleepVote sleepVote, SleepVoteManager sleepVoteManager) {
+        this.sleepVote = sleepVote;
+        this.sleepVoteManager = sleepVoteManager;
+        logger = sleepVote.getLogger();
+        buffer = new byte[4096];
+        playerIds = new HashMap<>();
+        worldIds = new HashMap<>();
+        fileLock = new Object();
+    }
+
+    /**
+     * Starts recording to a new file in the "traces" folder of the configuration directory. Must be called once the server has started
+     */
+    void start(int maxMegabytes) {
+        synchronized (fileLock) {
+            synchronized (this) {
+                startRecording(maxMegabytes);
+            }
+        }
+    }
+
+    private void startRecording(int maxMegabytes) {
+        if (out != null) {
+            maxBytes = maxMegabytes * 1024L * 1024L;
+            return;
+        }
+
+        Path directory = sleepVote.getConfigurationDirectory().resolve("traces");
+        Path file = directory.resolve("trace-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".svt");
+        try {
+            Files.createDirectories(directory);
+            out = Files.newOutputStream(file);
+        } catch (IOException e) {
+            logger.error("Unable to create the event trace file \"" + file + "\"!");
+            logger.error(e.getMessage());
+            return;
+        }
+
+        recording = true;
+        maxBytes = maxMegabytes * 1024L * 1024L;
+        bytesWritten = 0;
+        position = 0;
+        playerIds.clear();
+        worldIds.clear();
+        lastTick = Sponge.getServer().getRunningTimeTicks();
+
+        writeInt(MAGIC);
+        writeVarInt(lastTick);
+        writeLong(System.currentTimeMillis());
+        for (Player player : Sponge.getServer().getOnlinePlayers()) { // Players who are already online are recorded as joining
+            recordJoin(player, sleepVoteManager.isHidden(player));
+        }
+
+        flushTask = Task.builder().execute(this::flush).async().intervalTicks(FLUSH_INTERVAL_TICKS).submit(sleepVote);
+        logger.info("Recording events to \"" + file + "\"");
+    }
+
+    void stop() {
+        synchronized (fileLock) {
+            if (out == null) {
+                return;
+            }
+            synchronized (this) { // Nothing is recorded from now on, and the task doesn't run again
+                recording = false;
+                flushTask.cancel();
+            }
+            flush(); // A run of the task that is already waiting for the file lock will find the file closed
+            if (out != null) {
+                closeFile();
+            }
+        }
+    }
+
+    void recordJoin(Player player, boolean hidden) {
+        synchronized (this) {
+            if (!recording) {
+                return;
+            }
+            int worldId = worldId(player.getWorld());
+            int playerId = playerIds.size();
+            playerIds.put(player.getUniqueId(), playerId);
+            beginRecord(JOIN);
+            writeVarInt(playerId);
+            writeLong(player.getUniqueId().getMostSignificantBits());
+            writeLong(player.getUniqueId().getLeastSignificantBits());
+            writeString(player.getName());
+            ensureCapacity(16);
+            writeVarInt(worldId);
+            buffer[position++] = gameModeIndex(player.get(Keys.GAME_MODE).orElse(GameModes.SURVIVAL));
+            buffer[position++] = (byte) (player.get(Keys.VANISH).orElse(false) ? 1 : 0);
+            buffer[position++] = (byte) (player.hasPermission("sleepvote.hidden") ? 1 : 0);
+            buffer[position++] = (byte) (hidden ? 1 : 0);
+        }
+    }
+
+    void recordQuit(Player player) {
+        recordPlayer(QUIT, player);
+    }
+
+    void recordBedEnter(Player player) {
+        recordPlayer(BED_ENTER, player);
+    }
+
+    void recordBedExit(Player player) {
+        recordPlayer(BED_EXIT, player);
+    }
+
+    void recordTeleport(Player player, World to) {
+        recordPlayerWorld(TELEPORT, player, to);
+    }
+
+    void recordRespawn(Player player, World to) {
+        recordPlayerWorld(RESPAWN, player, to);
+    }
+
+    void recordGameMode(Player player, GameMode gameMode) {
+        recordPlayerValue(GAME_MODE, player, gameModeIndex(gameMode));
+    }
+
+    void recordVanish(Player player, boolean vanished) {
+        recordPlayerValue(VANISH, player, vanished ? 1 : 0);
+    }
+
+    void recordAFK(Player player, boolean afk) {
+        recordPlayerValue(AFK, player, afk ? 1 : 0);
+    }
+
+    void recordHide(Player player, boolean hidden) {
+        recordPlayerValue(HIDE, player, hidden ? 1 : 0);
+    }
+
+    synchronized void recordSkip(World world) {
+        if (!recording) {
+            return;
+        }
+        int worldId = worldId(world);
+        beginRecord(SKIP);
+        writeVarInt(worldId);
+    }
+
+    private synchronized void recordPlayer(byte type, Player player) {
+        Integer playerId;
+        if (!recording || (playerId = playerIds.get(player.getUniqueId())) == null) {
+            return;
+        }
+        beginRecord(type);
+        writeVarInt(playerId);
+    }
+
+    private synchronized void recordPlayerWorld(byte type, Player player, World world) {
+        Integer playerId;
+        if (!recording || (playerId = playerIds.get(player.getUniqueId())) == null) {
+            return;
+        }
+        int worldId = worldId(world);
+        beginRecord(type);
+        writeVarInt(playerId);
+        writeVarInt(worldId);
+    }
+
+    private synchronized void recordPlayerValue(byte type, Player player, int value) {
+        Integer playerId;
+        if (!recording || (playerId = playerIds.get(player.getUniqueId())) == null) {
+            return;
+        }
+        beginRecord(type);
+        writeVarInt(playerId);
+        buffer[position++] = (byte) value;
+    }
+
+    /**
+     * @return the id of the world, recording it first if this is the first time it appears
+     */
+    private int worldId(World world) {
+        Integer worldId = worldIds.get(world.getUniqueId());
+        if (worldId == null) {
+            worldId = worldIds.size();
+            worldIds.put(world.getUniqueId(), worldId);
+            beginRecord(WORLD);
+            writeVarInt(worldId);
+            writeLong(world.getUniqueId().getMostSignificantBits());
+            writeLong(world.getUniqueId().getLeastSignificantBits());
+            writeString(world.getName());
+            writeLong(world.getProperties().getWorldTime());
+        }
+        return worldId;
+    }
+
+    /**
+     * Writes a tick record first if time has passed since the previous record, and makes room for the new one
+     */
+    private void beginRecord(byte type) {
+        ensureCapacity(64);
+        int tick = Sponge.getServer().getRunningTimeTicks();
+        if (tick != lastTick) {
+            buffer[position++] = TICK;
+            writeVarInt(tick - lastTick);
+            lastTick = tick;
+        }
+        buffer[position++] = type;
+    }
+
+    private void flush() {
+        synchronized (fileLock) {
+            if (out == null) {
+                return; // Stopped in the meantime
+            }
+
+            byte[] data;
+            int length;
+            synchronized (this) {
+                if (position == 0) {
+                    return;
+                }
+                data = buffer;
+                length = position;
+                buffer = new byte[Math.max(4096, length)];
+                position = 0;
+            }
+
+            try {
+                out.write(data, 0, length);
+                out.flush();
+            } catch (IOException e) {
+                logger.error("An error occurred while writing the event trace file! Recording has stopped");
+                logger.error(e.getMessage());
+                closeFile();
+                return;
+            }
+
+            bytesWritten += length;
+            if (bytesWritten >= maxBytes) {
+                logger.warn("The event trace file has reached \"trace_max_megabytes\". Recording has stopped");
+                closeFile();
+            }
+        }
+    }
+
+    /**
+     * Stops recording and closes the file. Must be called while holding the file lock
+     */
+    private void closeFile() {
+        synchronized (this) {
+            recording = false;
+            flushTask.cancel();
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            logger.error("An error occurred while closing the event trace file!");
+            logger.error(e.getMessage());
+        }
+        out = null;
+    }
+
+    private static byte gameModeIndex(GameMode gameMode) {
+        if (gameMode.equals(GameModes.CREATIVE)) {
+            return 1;
+        } else if (gameMode.equals(GameModes.ADVENTURE)) {
+            return 2;
+        } else if (gameMode.equals(GameModes.SPECTATOR)) {
+            return 3;
+        }
+        return 0;
+    }
+
+    // Encoding. Callers hold the lock
+
+    private void ensureCapacity(int bytes) {
+        if (position + bytes > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + bytes));
+        }
+    }
+
+    private void writeVarInt(int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    private void writeInt(int value) {
+        ensureCapacity(4);
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            buffer[position++] = (byte) (value >>> shift);
+        }
+    }
+
+    private void writeLong(long value) {
+        ensureCapacity(8);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            buffer[position++] = (byte) (value >>> shift);
+        }
+    }
+
+    private void writeString(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ensureCapacity(bytes.length + 5);
+        writeVarInt(bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+}
@@ -0,0 +1,60 @@
+package io.github.icohedron.sleepvote;
+
+import org.spongepowered.api.scheduler.Task;
+import org.spongepowered.api.world.storage.WorldProperties;
+
+import java.util.function.Consumer;
+
+/**
+ * Advances the time of a world to the next morning over several ticks rather than in a single jump,
+ * so that the work the server has to catch up on (mob spawning, crop growth, client resyncs) is spread out.
+ * Executed once per tick until the morning is reached, at which point it cancels itself and runs the finishing action.
+ */
+class GradualNightSkip implements Consumer<Task> {
+
+    private final WorldProperties worldProperties;
+    private final long targetTime;
+    private final int durationTicks;
+    private final int maxStep;
+    private final Runnable onFinish;
+
+    private int elapsedTicks;
+
+    /**
+     * @param targetTime the world time of the morning to advance to, see {@link #nextMorning(long)}
+     * @param durationTicks the number of ticks the skip should take
+     * @param maxStep the largest amount of world time to advance in a single tick. This takes priority over the duration
+     * @param onFinish run once the morning has been reached
+     */
+    GradualNightSkip(WorldProperties worldProperties, long targetTime, int durationTicks, int maxStep, Runnable onFinish) {
+        this.worldProperties = worldProperties;
+        this.targetTime = targetTime;
+        this.durationTicks = durationTicks;
+        this.maxStep = maxStep;
+        this.onFinish = onFinish;
+    }
+
+    /**
+     * @return the next multiple of 24000 ticks (equivalent to '/time set 0')
+     */
+    static long nextMorning(long worldTime) {
+        return ((long) Math.ceil(worldTime / 24000.0d)) * 24000;
+    }
+
+    @Override
+    public void accept(Task task) {
+        long remaining = targetTime - worldProperties.getWorldTime();
+        if (remaining <= 0) { // The time may also have been changed by something else in the meantime
+            task.cancel();
+            onFinish.run();
+            return;
+        }
+
+        int ticksLeft = Math.max(durationTicks - elapsedTicks, 1);
+        long step = (remaining + ticksLeft - 1) / ticksLeft; // Spread what is left evenly over the ticks that are left
+        step = Math.max(Math.min(step, maxStep), 1);
+        elapsedTicks++;
+
+        worldProperties.setWorldTime(worldProperties.getWorldTime() + step);
+    }
+}
@@ -0,0 +1,192 @@
+package io.github.icohedron.sleepvote;
+
+import io.github.icohedron.sleepvote.api.AFKProvider;
+import org.spongepowered.api.Sponge;
+import org.spongepowered.api.entity.living.player.Player;
+import org.spongepowered.api.event.Listener;
+import org.spongepowered.api.event.Order;
+import org.spongepowered.api.event.block.InteractBlockEvent;
+import org.spongepowered.api.event.command.SendCommandEvent;
+import org.spongepowered.api.event.entity.InteractEntityEvent;
+import org.spongepowered.api.event.entity.MoveEntityEvent;
+import org.spongepowered.api.event.filter.Getter;
+import org.spongepowered.api.event.filter.cause.First;
+import org.spongepowered.api.event.message.MessageChannelEvent;
+import org.spongepowered.api.event.network.ClientConnectionEvent;
+import org.spongepowered.api.scheduler.Task;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * A minimal AFK detector for servers without Nucleus. A player is idle once they haven't moved, chatted, interacted
+ * or used a command for "idle_timeout_ticks". Online players are given a dense id, which indexes the primitive arrays
+ * holding their state. Activity is sampled at most once per {@link #SAMPLE_INTERVAL_TICKS} per player, so the
+ * cost on the event path is one map lookup and one comparison.
+ * <p>
+ * The arrays are only accessed from the main thread, where every event handled here fires and {@link #isAFK(UUID)} is called.
+ */
+public class IdleAFKProvider implements AFKProvider {
+
+    private static final int SAMPLE_INTERVAL_TICKS = 20;
+    private static final int CHECK_INTERVAL_TICKS = 20;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final SleepVote sleepVote;
+    private final Map<UUID, Integer> playerIds;
+
+    private int[] lastActivityTicks;
+    private boolean[] idle;
+    private Player[] players; // An id is free when players[id] == null
+    private int[] freeIds;
+    private int freeCount;
+    private int highWaterMark;
+
+    private volatile int timeoutTicks;
+
+    private Consumer<Player> onChange;
+    private Task checkTask;
+
+    IdleAFKProvider(SleepVote sleepVote, int timeoutTicks) {
+        this.sleepVote = sleepVote;
+        this.timeoutTicks = timeoutTicks;
+        playerIds = new ConcurrentHashMap<>();
+
+        lastActivityTicks = new int[INITIAL_CAPACITY];
+        idle = new boolean[INITIAL_CAPACITY];
+        players = new Player[INITIAL_CAPACITY];
+        freeIds = new int[INITIAL_CAPACITY];
+    }
+
+    void setTimeoutTicks(int timeoutTicks) {
+        this.timeoutTicks = timeoutTicks;
+    }
+
+    @Override
+    public void enable(Consumer<Player> onChange) {
+        this.onChange = onChange;
+        if (Sponge.isServerAvailable()) { // Only the case when enabled by a reload
+            for (Player player : Sponge.getServer().getOnlinePlayers()) {
+                addPlayer(player);
+            }
+        }
+        Sponge.getEventManager().registerListeners(sleepVote, this);
+        checkTask = Task.builder().execute(this::check).intervalTicks(CHECK_INTERVAL_TICKS).submit(sleepVote);
+    }
+
+    @Override
+    public void disable() {
+        Sponge.getEventManager().unregisterListeners(this);
+        checkTask.cancel();
+        playerIds.clear();
+        Arrays.fill(players, null);
+        Arrays.fill(idle, false);
+        freeCount = 0;
+        highWaterMark = 0;
+    }
+
+    @Override
+    public boolean isAFK(UUID playerUuid) {
+        Integer id = playerIds.get(playerUuid);
+        return id != null && idle[id];
+    }
+
+    private void check() {
+        int now = Sponge.getServer().getRunningTimeTicks();
+        int timeoutTicks = this.timeoutTicks;
+        for (int id = 0; id < highWaterMark; id++) {
+            if (players[id] != null && !idle[id] && now - lastActivityTicks[id] >= timeoutTicks) {
+                idle[id] = true;
+                onChange.accept(players[id]);
+            }
+        }
+    }
+
+    private void recordActivity(Player player) {
+        Integer id = playerIds.get(player.getUniqueId());
+        if (id == null) {
+            return;
+        }
+        int now = Sponge.getServer().getRunningTimeTicks();
+        if (now - lastActivityTicks[id] < SAMPLE_INTERVAL_TICKS) {
+            return;
+        }
+        lastActivityTicks[id] = now;
+        if (idle[id]) {
+            idle[id] = false;
+            onChange.accept(player);
+        }
+    }
+
+    private void addPlayer(Player player) {
+        if (playerIds.containsKey(player.getUniqueId())) {
+            return;
+        }
+
+        int id;
+        if (freeCount > 0) {
+            id = freeIds[--freeCount];
+        } else {
+            if (highWaterMark == players.length) {
+                int capacity = players.length * 2;
+                lastActivityTicks = Arrays.copyOf(lastActivityTicks, capacity);
+                idle = Arrays.copyOf(idle, capacity);
+                players = Arrays.copyOf(players, capacity);
+                freeIds = Arrays.copyOf(freeIds, capacity);
+            }
+            id = highWaterMark++;
+        }
+
+        lastActivityTicks[id] = Sponge.getServer().getRunningTimeTicks();
+        idle[id] = false;
+        players[id] = player;
+        playerIds.put(player.getUniqueId(), id);
+    }
+
+    private void removePlayer(Player player) {
+        Integer id = playerIds.remove(player.getUniqueId());
+        if (id != null) {
+            players[id] = null;
+            idle[id] = false;
+            freeIds[freeCount++] = id;
+        }
+    }
+
+    @Listener
+    public void onPlayerJoin(ClientConnectionEvent.Join event, @Getter("getTargetEntity") Player player) {
+        addPlayer(player);
+    }
+
+    @Listener
+    public void onPlayerDisconnect(ClientConnectionEvent.Disconnect event, @Getter("getTargetEntity") Player player) {
+        removePlayer(player);
+    }
+
+    @Listener(order = Order.POST)
+    public void onMoveEvent(MoveEntityEvent event, @Getter("getTargetEntity") Player player) {
+        recordActivity(player);
+    }
+
+    @Listener(order = Order.POST)
+    public void onChatEvent(MessageChannelEvent.Chat event, @First Player player) {
+        recordActivity(player);
+    }
+
+    @Listener(order = Order.POST)
+    public void onInteractBlockEvent(InteractBlockEvent event, @First Player player) {
+        recordActivity(player);
+    }
+
+    @Listener(order = Order.POST)
+    public void onInteractEntityEvent(InteractEntityEvent event, @First Player player) {
+        recordActivity(player);
+    }
+
+    @Listener(order = Order.POST)
+    public void onCommandEvent(SendCommandEvent event, @First Player player) {
+        recordActivity(player);
+    }
+}
@@ -0,0 +1,76 @@
+package io.github.icohedron.sleepvote;
+
+import org.slf4j.Logger;
+import org.spongepowered.api.Sponge;
+import org.spongepowered.api.scheduler.Task;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Carries changes to worlds and players (time, weather, messages, sounds, events) from the asynchronous voting loop
+ * and other threads to the main thread, which applies everything queued since the last tick in one batch, in the order it was queued.
+ * <p>
+ * Producers link their node onto the tail with a single atomic swap, so queueing never blocks or takes a lock,
+ * whichever thread it is done from. Only the main thread consumes, so the head is not synchronized at all.
+ */
+class MainThreadQueue {
+
+    private final Logger logger;
+
+    private final AtomicReference<Node> tail;
+    private Node head; // The last node applied. Only accessed from the main thread
+
+    MainThreadQueue(SleepVote sleepVote) {
+        logger = sleepVote.getLogger();
+        head = new Node(null);
+        tail = new AtomicReference<>(head);
+
+        Task.builder().execute(this::drain).intervalTicks(1).submit(sleepVote);
+    }
+
+    /**
+     * Applies the change right away if called from the main thread, or queues it for the next tick otherwise
+     */
+    void execute(Runnable change) {
+        if (Sponge.getServer().isMainThread()) {
+            change.run();
+        } else {
+            submit(change);
+        }
+    }
+
+    /**
+     * Queues the change for the next tick. Safe to call from any thread
+     */
+    void submit(Runnable change) {
+        Node node = new Node(change);
+        tail.getAndSet(node).next = node; // The volatile write makes the change visible to the main thread
+    }
+
+    /**
+     * Applies every queued change. A change whose producer is still in the middle of linking it is left for the next tick
+     */
+    private void drain() {
+        Node node;
+        while ((node = head.next) != null) {
+            head = node;
+            Runnable change = node.change;
+            node.change = null; // The node stays reachable as the head until the next one is applied
+            try {
+                change.run();
+            } catch (RuntimeException e) {
+                logger.error("An error occurred while applying a change on the main thread!", e);
+            }
+        }
+    }
+
+    private static final class Node {
+
+        private Runnable change;
+        private volatile Node next;
+
+        private Node(Runnable change) {
+            this.change = change;
+        }
+    }
+}
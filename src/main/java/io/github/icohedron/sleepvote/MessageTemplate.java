@@ -0,0 +1,136 @@
+package io.github.icohedron.sleepvote;
+
+import org.spongepowered.api.text.Text;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A configured message, split once into literal text and placeholders so that rendering it only
+ * has to fill in the numbers and the player name. Rendered messages are cached per (sleeping, required) pair.
+ */
+final class MessageTemplate {
+
+    private static final String[] PLACEHOLDERS = {"<sleeping>", "<required>", "<percent>", "<player>"};
+    private static final int SLEEPING = 0;
+    private static final int REQUIRED = 1;
+    private static final int PERCENT = 2;
+    private static final int PLAYER = 3;
+
+    private static final int MAX_CACHED_MESSAGES = 256;
+
+    // literals[i] comes right before placeholders[i]. The last literal comes after every placeholder
+    private final String[] literals;
+    private final int[] placeholders;
+    private final boolean usesPlayerName;
+    private final Text prefix;
+
+    private final Map<Long, Rendered> cache;
+
+    private MessageTemplate(String[] literals, int[] placeholders, Text prefix) {
+        this.literals = literals;
+        this.placeholders = placeholders;
+        this.prefix = prefix;
+
+        boolean usesPlayerName = false;
+        for (int placeholder : placeholders) {
+            usesPlayerName |= placeholder == PLAYER;
+        }
+        this.usesPlayerName = usesPlayerName;
+
+        cache = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @param prefix prepended to every rendered message, or null for none
+     */
+    static MessageTemplate compile(String message, Text prefix) {
+        List<String> literals = new ArrayList<>();
+        List<Integer> placeholders = new ArrayList<>();
+
+        int position = 0;
+        while (true) {
+            int nextIndex = -1;
+            int nextPlaceholder = -1;
+            for (int i = 0; i < PLACEHOLDERS.length; i++) {
+                int index = message.indexOf(PLACEHOLDERS[i], position);
+                if (index >= 0 && (nextIndex < 0 || index < nextIndex)) {
+                    nextIndex = index;
+                    nextPlaceholder = i;
+                }
+            }
+
+            if (nextIndex < 0) {
+                literals.add(message.substring(position));
+                break;
+            }
+
+            literals.add(message.substring(position, nextIndex));
+            placeholders.add(nextPlaceholder);
+            position = nextIndex + PLACEHOLDERS[nextPlaceholder].length();
+        }
+
+        return new MessageTemplate(literals.toArray(new String[0]),
+                placeholders.stream().mapToInt(Integer::intValue).toArray(),
+                prefix);
+    }
+
+    Text render(int numSleeping, int requiredSleeping, String playerName) {
+        String cachedPlayerName = usesPlayerName ? playerName : "";
+        long key = ((long) numSleeping << 32) | (requiredSleeping & 0xFFFFFFFFL);
+
+        Rendered rendered = cache.get(key);
+        if (rendered != null && rendered.playerName.equals(cachedPlayerName)) {
+            return rendered.text;
+        }
+
+        int percent = 0;
+        if (requiredSleeping > 0) {
+            percent = (int) (numSleeping * 100L / requiredSleeping);
+        }
+
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < placeholders.length; i++) {
+            builder.append(literals[i]);
+            switch (placeholders[i]) {
+                case SLEEPING:
+                    builder.append(numSleeping);
+                    break;
+                case REQUIRED:
+                    builder.append(requiredSleeping);
+                    break;
+                case PERCENT:
+                    builder.append(percent);
+                    break;
+                case PLAYER:
+                    builder.append(playerName);
+                    break;
+            }
+        }
+        builder.append(literals[placeholders.length]);
+
+        Text text = Text.of(builder.toString());
+        if (prefix != null) {
+            text = Text.of(prefix, text);
+        }
+
+        if (cache.size() >= MAX_CACHED_MESSAGES) {
+            cache.clear();
+        }
+        cache.put(key, new Rendered(cachedPlayerName, text));
+        return text;
+    }
+
+    private static final class Rendered {
+
+        private final String playerName;
+        private final Text text;
+
+        private Rendered(String playerName, Text text) {
+            this.playerName = playerName;
+            this.text = text;
+        }
+    }
+}
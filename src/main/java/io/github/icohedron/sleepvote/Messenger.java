@@ -1,60 +1,41 @@
 package io.github.icohedron.sleepvote;
 
 import org.spongepowered.api.effect.sound.SoundType;
-import org.spongepowered.api.entity.living.player.Player;
 import org.spongepowered.api.text.Text;
 import org.spongepowered.api.text.format.TextColors;
-import org.spongepowered.api.world.World;
 
 class Messenger {
 
+    static final Text PREFIX = Text.of(TextColors.GREEN, "[", TextColors.RED, "SleepVote", TextColors.GREEN, "] ");
+
     private SleepVoteManager sleepVoteManager;
-    private boolean playSound;
 
-    Messenger(SleepVoteManager sleepVoteManager, boolean playSound) {
+    Messenger(SleepVoteManager sleepVoteManager) {
         this.sleepVoteManager = sleepVoteManager;
-        this.playSound = playSound;
     }
 
-    Text parseMessage(String message, int numSleeping, int requiredSleeping, String playerName, boolean prefix) {
-        int percent = 0;
-        if (requiredSleeping > 0) {
-            percent = (int) (numSleeping * 100.0d / requiredSleeping);
-        }
-
-        String msg = message;
-        msg = msg.replace("<sleeping>", Integer.toString(numSleeping));
-        msg = msg.replace("<required>", Integer.toString(requiredSleeping));
-        msg = msg.replace("<percent>", Integer.toString(percent));
-        msg = msg.replace("<player>", playerName);
-        Text text = Text.of(msg);
-
-        return prefix ? addPrefix(text) : text;
+    Text parseMessage(MessageTemplate message, int numSleeping, int requiredSleeping, String playerName) {
+        return message.render(numSleeping, requiredSleeping, playerName);
     }
 
-    void sendWorldMessage(World world, Text message) {
-        for (Player p : world.getPlayers()) {
-            p.sendMessage(message);
-        }
+    void sendWorldMessage(SVWorldData svWorldData, Text message) {
+        svWorldData.getAudience().send(message);
+        sleepVoteManager.getMetrics().recordMessagesSent(svWorldData.getAudience().size());
     }
 
-    void playWorldSound(World world, SoundType sound) {
-        if (!playSound) {
+    void playWorldSound(SVWorldData svWorldData, SoundType sound) {
+        if (!soundsEnabled()) {
             return;
         }
-        for (Player p : world.getPlayers()) {
-            if (!sleepVoteManager.isMute(p)) {
-                p.playSound(sound, p.getLocation().getPosition(), 1);
-            }
-        }
+        svWorldData.getSoundAudience().playSound(sound);
+        sleepVoteManager.getMetrics().recordSoundsPlayed(svWorldData.getSoundAudience().size());
     }
 
     Text addPrefix(Text text) {
-        Text prefix = Text.of(TextColors.GREEN, "[", TextColors.RED, "SleepVote", TextColors.GREEN, "] ");
-        return Text.of(prefix, text);
+        return Text.of(PREFIX, text);
     }
 
     boolean soundsEnabled() {
-        return playSound;
+        return sleepVoteManager.getConfig().isSoundEnabled();
     }
 }
@@ -0,0 +1,66 @@
+package io.github.icohedron.sleepvote;
+
+import io.github.icohedron.sleepvote.api.AFKProvider;
+import io.github.nucleuspowered.nucleus.api.events.NucleusAFKEvent;
+import org.spongepowered.api.Sponge;
+import org.spongepowered.api.entity.living.player.Player;
+import org.spongepowered.api.event.Listener;
+import org.spongepowered.api.event.filter.cause.First;
+import org.spongepowered.api.event.network.ClientConnectionEvent;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Reports the AFK state of players as tracked by Nucleus
+ */
+public class NucleusAFKProvider implements AFKProvider {
+
+    private final SleepVote sleepVote;
+    private final Set<UUID> afkPlayers;
+
+    private Consumer<Player> onChange;
+
+    NucleusAFKProvider(SleepVote sleepVote) {
+        this.sleepVote = sleepVote;
+        afkPlayers = ConcurrentHashMap.newKeySet(); // Read from the asynchronous voting loop
+    }
+
+    @Override
+    public void enable(Consumer<Player> onChange) {
+        this.onChange = onChange;
+        Sponge.getEventManager().registerListeners(sleepVote, this);
+    }
+
+    @Override
+    public void disable() {
+        Sponge.getEventManager().unregisterListeners(this);
+        afkPlayers.clear();
+    }
+
+    @Override
+    public boolean isAFK(UUID playerUuid) {
+        return afkPlayers.contains(playerUuid);
+    }
+
+    @Listener
+    public void onPlayerGoingAFKEvent(NucleusAFKEvent.GoingAFK event, @First Player player) {
+        if (afkPlayers.add(player.getUniqueId())) {
+            onChange.accept(player);
+        }
+    }
+
+    @Listener
+    public void onPlayerReturingFromAFKEvent(NucleusAFKEvent.ReturningFromAFK event, @First Player player) {
+        if (afkPlayers.remove(player.getUniqueId())) {
+            onChange.accept(player);
+        }
+    }
+
+    @Listener
+    public void onPlayerDisconnect(ClientConnectionEvent.Disconnect event, @First Player player) {
+        afkPlayers.remove(player.getUniqueId());
+    }
+}
@@ -0,0 +1,380 @@
+package io.github.icohedron.sleepvote;
+
+import org.slf4j.Logger;
+import org.spongepowered.api.scheduler.Task;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Persists the '/sleepvote mute' and '/sleepvote hide' settings of players across restarts.
+ * <p>
+ * The settings live in "players.dat", an open addressing hash table of fixed 17 byte records (UUID + flags) that is
+ * never loaded as a whole. A player's record is read off the main thread while they authenticate, so that joining
+ * never waits for the disk, and changed records are written back in place by a background task at most once every
+ * few seconds. Only changes that haven't been written yet and the settings of players who are about to join are kept
+ * in memory, so memory stays bounded by the online players no matter how many players have ever joined.
+ */
+class PlayerPreferenceStore {
+
+    private static final String FILE_NAME = "players.dat";
+    private static final int FILE_MAGIC = 0x53565032; // "SVP2"
+    private static final int INITIAL_CAPACITY = 1024; // Must be a power of two
+    private static final int SAVE_INTERVAL_TICKS = 100;
+    private static final long PRELOAD_EXPIRY_NANOS = TimeUnit.MINUTES.toNanos(1); // For players who authenticated but never joined
+
+    private static final byte MUTE = 1;
+    private static final byte HIDDEN = 1 << 1;
+
+    private final Logger logger;
+    private final Path filePath;
+
+    private final Map<UUID, Byte> pendingWrites; // Settings changed since the last save
+    private final Map<UUID, Preloaded> preloaded; // Settings of players who authenticated, until they join
+    private Table table; // Guarded by this. Null if the file couldn't be opened. Never used from the main thread
+
+    private SleepVote sleepVote; // Null if there are no background tasks
+    private Task saveTask;
+
+    PlayerPreferenceStore(SleepVote sleepVote) {
+        this(sleepVote.getLogger(), sleepVote.getConfigurationDirectory().resolve(FILE_NAME));
+        this.sleepVote = sleepVote;
+        saveTask = Task.builder().execute(this::save).async().intervalTicks(SAVE_INTERVAL_TICKS).submit(sleepVote);
+    }
+
+    /**
+     * Without any background tasks. {@link #save()} is left to the caller, and {@link #loadLater(UUID, Consumer)} can't be used
+     */
+    PlayerPreferenceStore(Logger logger, Path filePath) {
+        this.logger = logger;
+        this.filePath = filePath;
+        pendingWrites = new ConcurrentHashMap<>();
+        preloaded = new ConcurrentHashMap<>();
+
+        synchronized (this) {
+            openTable();
+        }
+    }
+
+    /**
+     * Reads the settings of a player who is about to join, for {@link #takePreloaded(UUID)}. Must not be called from the main thread
+     */
+    void preload(UUID playerUuid) {
+        preloaded.put(playerUuid, new Preloaded(readFlags(playerUuid), System.nanoTime()));
+    }
+
+    /**
+     * @return the data of a player who just came online, created from the settings read by {@link #preload(UUID)}, or
+     * null if they weren't read
+     */
+    SVPlayerData takePreloaded(UUID playerUuid) {
+        Preloaded settings = preloaded.remove(playerUuid);
+        return settings == null ? null : toPlayerData(settings.flags);
+    }
+
+    /**
+     * Reads the settings of the player on a background task, and passes them to the callback on that task's thread
+     */
+    void loadLater(UUID playerUuid, Consumer<SVPlayerData> callback) {
+        Task.builder().execute(() -> callback.accept(readPlayer(playerUuid))).async().submit(sleepVote);
+    }
+
+    /**
+     * Reads at most a few records, which are almost always in the page cache. Must not be called from the main thread
+     */
+    SVPlayerData readPlayer(UUID playerUuid) {
+        return toPlayerData(readFlags(playerUuid));
+    }
+
+    void storePlayer(UUID playerUuid, SVPlayerData svPlayerData) {
+        pendingWrites.put(playerUuid, (byte) ((svPlayerData.isMute() ? MUTE : 0) | (svPlayerData.isHidden() ? HIDDEN : 0)));
+    }
+
+    /**
+     * @return whether the settings of the player were changed since the last save
+     */
+    boolean hasPendingChanges(UUID playerUuid) {
+        return pendingWrites.containsKey(playerUuid);
+    }
+
+    private static SVPlayerData toPlayerData(byte flags) {
+        return new SVPlayerData((flags & MUTE) != 0, (flags & HIDDEN) != 0);
+    }
+
+    /**
+     * The settings that haven't been saved yet take precedence over those on disk. Synchronized with {@link #save()},
+     * so that a record being saved is never missed in between
+     */
+    private synchronized byte readFlags(UUID playerUuid) {
+        Byte pending = pendingWrites.get(playerUuid);
+        if (pending != null) {
+            return pending;
+        }
+        if (table == null) {
+            return 0;
+        }
+        try {
+            return table.read(playerUuid);
+        } catch (IOException e) {
+            logger.error("An error occurred while attempting to read the player settings file!");
+            logger.error(e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Writes the records of the settings that have changed since the last save
+     */
+    synchronized void save() {
+        long now = System.nanoTime();
+        preloaded.values().removeIf(settings -> now - settings.loadedNanos > PRELOAD_EXPIRY_NANOS);
+
+        if (pendingWrites.isEmpty() || (table == null && !openTable())) {
+            return;
+        }
+
+        try {
+            for (Map.Entry<UUID, Byte> entry : pendingWrites.entrySet()) {
+                if (table.isFull()) {
+                    grow();
+                }
+                table.write(entry.getKey(), entry.getValue());
+                // A player who authenticated in the meantime may have been preloaded with an older value
+                preloaded.computeIfPresent(entry.getKey(), (uuid, settings) -> new Preloaded(entry.getValue(), settings.loadedNanos));
+                pendingWrites.remove(entry.getKey(), entry.getValue()); // Unless it changed again in the meantime
+            }
+        } catch (IOException e) {
+            logger.error("An error occurred while attempting to save the player settings file!"); // What's left is tried again next time
+            logger.error(e.getMessage());
+        }
+    }
+
+    void dispose() {
+        if (saveTask != null) {
+            saveTask.cancel();
+        }
+        save();
+        synchronized (this) {
+            if (table != null) {
+                try {
+                    table.close();
+                } catch (IOException e) {
+                    logger.error("An error occurred while attempting to close the player settings file!");
+                    logger.error(e.getMessage());
+                }
+                table = null;
+            }
+        }
+    }
+
+    /**
+     * Opens the settings file, creating it first if needed
+     *
+     * @return whether the file could be opened
+     */
+    private boolean openTable() {
+        try {
+            Files.createDirectories(filePath.getParent());
+            if (Files.notExists(filePath)) {
+                Table.create(filePath, INITIAL_CAPACITY).close();
+            } else if (readMagic() != FILE_MAGIC) {
+                Path invalidPath = filePath.resolveSibling(FILE_NAME + ".invalid");
+                logger.error("\"" + filePath + "\" is not a SleepVote player file! It has been moved to \"" + invalidPath + "\"");
+                Files.move(filePath, invalidPath, StandardCopyOption.REPLACE_EXISTING);
+                Table.create(filePath, INITIAL_CAPACITY).close();
+            }
+            table = Table.open(filePath);
+            return true;
+        } catch (IOException e) {
+            logger.error("An error occurred while attempting to open the player settings file! Player settings will not be loaded");
+            logger.error(e.getMessage());
+            return false;
+        }
+    }
+
+    private int readMagic() throws IOException {
+        if (Files.size(filePath) < Integer.BYTES) {
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(filePath))) {
+            return in.readInt();
+        }
+    }
+
+    /**
+     * Rewrites the table with twice the capacity, dropping the records of players without any setting turned on
+     */
+    private void grow() throws IOException {
+        Path temporaryPath = filePath.resolveSibling(FILE_NAME + ".tmp");
+        try (Table grown = Table.create(temporaryPath, table.capacity * 2)) {
+            table.copyTo(grown);
+        }
+        table.close();
+        table = null;
+        Files.move(temporaryPath, filePath, StandardCopyOption.REPLACE_EXISTING);
+        table = Table.open(filePath);
+    }
+
+    private static final class Preloaded {
+
+        private final byte flags;
+        private final long loadedNanos;
+
+        private Preloaded(byte flags, long loadedNanos) {
+            this.flags = flags;
+            this.loadedNanos = loadedNanos;
+        }
+    }
+
+    /**
+     * Layout: magic, capacity and record count (4 bytes each), followed by the records. A record of all zeros is empty.
+     * Records are found by linear probing from the hash of their UUID, and the table is kept at most half full
+     */
+    private static final class Table implements AutoCloseable {
+
+        private static final int HEADER_SIZE = 12;
+        private static final int RECORD_SIZE = 17;
+        private static final int COPY_BATCH = 256; // Records read at once when copying
+
+        private final FileChannel channel;
+        private final int capacity; // A power of two
+        private int count;
+        private final ByteBuffer record;
+
+        private Table(FileChannel channel, int capacity, int count) {
+            this.channel = channel;
+            this.capacity = capacity;
+            this.count = count;
+            record = ByteBuffer.allocate(RECORD_SIZE);
+        }
+
+        static Table create(Path path, int capacity) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(FILE_MAGIC).putInt(capacity).putInt(0).flip();
+            writeFully(channel, header, 0);
+            writeFully(channel, ByteBuffer.allocate(1), HEADER_SIZE + (long) capacity * RECORD_SIZE - 1); // Extends the file with empty records
+            return new Table(channel, capacity, 0);
+        }
+
+        static Table open(Path path) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, 0);
+            int capacity = header.getInt(4);
+            if (header.getInt(0) != FILE_MAGIC || Integer.bitCount(capacity) != 1
+                    || channel.size() < HEADER_SIZE + (long) capacity * RECORD_SIZE) {
+                channel.close();
+                throw new IOException("\"" + path + "\" is corrupted");
+            }
+            return new Table(channel, capacity, header.getInt(8));
+        }
+
+        /**
+         * @return the flags of the player, or 0 if they have no record
+         */
+        byte read(UUID uuid) throws IOException {
+            find(uuid);
+            return isEmpty() ? 0 : record.get(16);
+        }
+
+        boolean isFull() {
+            return (count + 1) * 2 > capacity;
+        }
+
+        void write(UUID uuid, byte flags) throws IOException {
+            int slot = find(uuid);
+            if (isEmpty()) {
+                if (flags == 0) {
+                    return; // Nothing to remember
+                }
+                count++;
+                ByteBuffer countBuffer = ByteBuffer.allocate(Integer.BYTES);
+                countBuffer.putInt(count).flip();
+                writeFully(channel, countBuffer, 8);
+            }
+            record.clear();
+            record.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits()).put(flags).flip();
+            writeFully(channel, record, offset(slot));
+        }
+
+        /**
+         * Writes every record with a setting turned on into the other table
+         */
+        void copyTo(Table target) throws IOException {
+            ByteBuffer batch = ByteBuffer.allocate(RECORD_SIZE * COPY_BATCH);
+            for (int first = 0; first < capacity; first += COPY_BATCH) {
+                int records = Math.min(COPY_BATCH, capacity - first);
+                batch.clear();
+                batch.limit(records * RECORD_SIZE);
+                readFully(channel, batch, offset(first));
+                for (int i = 0; i < records; i++) {
+                    int position = i * RECORD_SIZE;
+                    byte flags = batch.get(position + 16);
+                    if (flags != 0) {
+                        target.write(new UUID(batch.getLong(position), batch.getLong(position + 8)), flags);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        /**
+         * Leaves the record of the returned slot in the record buffer
+         *
+         * @return the slot holding the player's record, or the empty slot where it would go
+         */
+        private int find(UUID uuid) throws IOException {
+            int hash = uuid.hashCode();
+            int slot = (hash ^ (hash >>> 16)) & (capacity - 1);
+            while (true) { // The table is never full, so there always is an empty slot
+                record.clear();
+                readFully(channel, record, offset(slot));
+                if (isEmpty() || (record.getLong(0) == uuid.getMostSignificantBits() && record.getLong(8) == uuid.getLeastSignificantBits())) {
+                    return slot;
+                }
+                slot = (slot + 1) & (capacity - 1);
+            }
+        }
+
+        private boolean isEmpty() {
+            return record.getLong(0) == 0 && record.getLong(8) == 0;
+        }
+
+        private static long offset(int slot) {
+            return HEADER_SIZE + (long) slot * RECORD_SIZE;
+        }
+
+        private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of the player settings file");
+                }
+                position += read;
+            }
+        }
+
+        private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package io.github.icohedron.sleepvote;
+
+import org.spongepowered.api.Sponge;
+import org.spongepowered.api.boss.BossBarColors;
+import org.spongepowered.api.boss.BossBarOverlays;
+import org.spongepowered.api.boss.ServerBossBar;
+import org.spongepowered.api.entity.living.player.Player;
+import org.spongepowered.api.scheduler.Task;
+import org.spongepowered.api.text.Text;
+import org.spongepowered.api.text.chat.ChatTypes;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shows the progress of the vote of each world in a boss bar or the action bar, as an alternative to chat messages.
+ * Worlds are only marked as changed by the voting loop. A task on the main thread then pushes an update if, and only if,
+ * the displayed counts actually changed, and no more often than once every "progress_update_interval_ticks" per world.
+ * Boss bar viewers are added and removed as players enter and leave the world, rather than resending the bar to everyone.
+ * The action bar is the exception: Minecraft clears it after about 3 seconds, so its text is sent again every
+ * {@link #ACTION_BAR_REFRESH_TICKS} (or the update interval, if longer) for as long as anyone is sleeping.
+ */
+class ProgressDisplay {
+
+    private static final int ACTION_BAR_REFRESH_TICKS = 40;
+
+    enum Mode {
+        NONE,
+        BOSS_BAR,
+        ACTION_BAR;
+
+        static Mode of(String name) {
+            switch (name.toLowerCase()) {
+                case "bossbar":
+                    return BOSS_BAR;
+                case "actionbar":
+                    return ACTION_BAR;
+                default:
+                    return NONE;
+            }
+        }
+    }
+
+    private final SleepVoteManager sleepVoteManager;
+
+    private final Map<UUID, WorldProgress> worldProgress;
+    private final Set<UUID> changedWorlds;
+
+    private volatile Mode mode;
+
+    ProgressDisplay(SleepVote sleepVote, SleepVoteManager sleepVoteManager) {
+        this.sleepVoteManager = sleepVoteManager;
+        worldProgress = new ConcurrentHashMap<>();
+        changedWorlds = ConcurrentHashMap.newKeySet();
+        mode = Mode.NONE;
+
+        Task.builder().execute(this::update).intervalTicks(1).submit(sleepVote);
+    }
+
+    /**
+     * Must be called from the main thread
+     */
+    void setMode(Mode mode) {
+        if (mode != this.mode) {
+            clear();
+            this.mode = mode;
+        }
+    }
+
+    /**
+     * Schedules the display of the world to be brought up to date. May be called from any thread
+     */
+    void markChanged(UUID worldUuid) {
+        if (mode != Mode.NONE) {
+            changedWorlds.add(worldUuid);
+        }
+    }
+
+    /**
+     * Must be called from the main thread
+     */
+    void addViewer(UUID worldUuid, Player player) {
+        if (mode == Mode.BOSS_BAR) {
+            getWorldProgress(worldUuid).bossBar.addPlayer(player);
+        }
+    }
+
+    /**
+     * Must be called from the main thread
+     */
+    void removeViewer(UUID worldUuid, Player player) {
+        WorldProgress progress = worldProgress.get(worldUuid);
+        if (progress != null && progress.bossBar != null) {
+            progress.bossBar.removePlayer(player);
+        }
+    }
+
+    /**
+     * Must be called from the main thread
+     */
+    void removeWorld(UUID worldUuid) {
+        changedWorlds.remove(worldUuid);
+        WorldProgress progress = worldProgress.remove(worldUuid);
+        if (progress != null && progress.bossBar != null) {
+            progress.bossBar.removePlayers(new ArrayList<>(progress.bossBar.getPlayers()));
+        }
+    }
+
+    private void clear() {
+        for (UUID worldUuid : worldProgress.keySet()) {
+            removeWorld(worldUuid);
+        }
+        changedWorlds.clear();
+    }
+
+    private void update() {
+        if (changedWorlds.isEmpty() && (mode != Mode.ACTION_BAR || worldProgress.isEmpty())) {
+            return;
+        }
+
+        int now = Sponge.getServer().getRunningTimeTicks();
+        int intervalTicks = sleepVoteManager.getConfig().getProgressUpdateIntervalTicks();
+        if (mode == Mode.ACTION_BAR) {
+            refreshActionBars(now, Math.max(ACTION_BAR_REFRESH_TICKS, intervalTicks));
+        }
+        for (Iterator<UUID> iterator = changedWorlds.iterator(); iterator.hasNext(); ) {
+            UUID worldUuid = iterator.next();
+            WorldProgress progress = getWorldProgress(worldUuid);
+            if (now - progress.lastUpdateTick < intervalTicks) {
+                continue; // Stays marked until it may be updated again
+            }
+            iterator.remove();
+
+            SVWorldData svWorldData = sleepVoteManager.findSVWorldData(worldUuid);
+            int sleeping = svWorldData == null || svWorldData.isSkipping() ? 0 : svWorldData.getSleepingCount();
+            int required = svWorldData == null ? 0 : sleepVoteManager.getRequiredPlayerCount(svWorldData);
+            if (sleeping == progress.shownSleeping && required == progress.shownRequired) {
+                continue;
+            }
+            progress.shownSleeping = sleeping;
+            progress.shownRequired = required;
+            progress.lastUpdateTick = now;
+            show(progress, svWorldData, sleeping, required);
+        }
+    }
+
+    /**
+     * Sends the text of every world whose action bar hasn't been sent for the given number of ticks again, so that it doesn't fade
+     */
+    private void refreshActionBars(int now, int refreshTicks) {
+        for (Map.Entry<UUID, WorldProgress> entry : worldProgress.entrySet()) {
+            WorldProgress progress = entry.getValue();
+            if (progress.shownText == null || now - progress.lastUpdateTick < refreshTicks) {
+                continue;
+            }
+            SVWorldData svWorldData = sleepVoteManager.findSVWorldData(entry.getKey());
+            if (svWorldData != null) {
+                progress.lastUpdateTick = now;
+                svWorldData.getAudience().send(progress.shownText, ChatTypes.ACTION_BAR);
+            }
+        }
+    }
+
+    private void show(WorldProgress progress, SVWorldData svWorldData, int sleeping, int required) {
+        if (sleeping == 0) { // Nothing to show once the vote is over
+            progress.shownText = null;
+            if (progress.bossBar != null) {
+                progress.bossBar.setVisible(false);
+            }
+            return;
+        }
+
+        Text text = sleepVoteManager.getMessenger().parseMessage(sleepVoteManager.getConfig().getProgressMessage(), sleeping, required, "");
+        if (mode == Mode.BOSS_BAR) {
+            progress.bossBar.setName(text);
+            progress.bossBar.setPercent(required == 0 ? 1 : Math.min((float) sleeping / required, 1));
+            progress.bossBar.setVisible(true);
+        } else if (mode == Mode.ACTION_BAR) {
+            progress.shownText = text;
+            svWorldData.getAudience().send(text, ChatTypes.ACTION_BAR);
+        }
+    }
+
+    private WorldProgress getWorldProgress(UUID worldUuid) {
+        return worldProgress.computeIfAbsent(worldUuid, uuid -> new WorldProgress(mode == Mode.BOSS_BAR ? ServerBossBar.builder()
+                .name(Text.EMPTY)
+                .color(BossBarColors.YELLOW)
+                .overlay(BossBarOverlays.PROGRESS)
+                .percent(0)
+                .visible(false)
+                .build() : null));
+    }
+
+    private static final class WorldProgress {
+
+        private final ServerBossBar bossBar; // Null unless in boss bar mode
+        private int shownSleeping; // Only accessed from the main thread
+        private int shownRequired;
+        private Text shownText; // The action bar text to send again, or null if there is none
+        private int lastUpdateTick = Integer.MIN_VALUE / 2;
+
+        private WorldProgress(ServerBossBar bossBar) {
+            this.bossBar = bossBar;
+        }
+    }
+}
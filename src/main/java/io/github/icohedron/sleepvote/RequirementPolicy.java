@@ -0,0 +1,106 @@
+package io.github.icohedron.sleepvote;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+
+/**
+ * The configured sleep requirement, compiled once at load into a form that can be evaluated
+ * for any population using only integer arithmetic.
+ */
+final class RequirementPolicy {
+
+    // Percentages with more decimal places than this are evaluated with BigDecimal, since population * numerator could overflow a long
+    private static final int MAX_INTEGER_SCALE = 9;
+
+    private final BigDecimal requiredPercent;
+    private final RoundingMode roundingMode;
+    private final int requiredNumber;
+    private final boolean useHigherRequirementType;
+
+    // requiredPercent == percentNumerator / percentDenominator
+    private final long percentNumerator;
+    private final long percentDenominator;
+    private final boolean integerArithmetic;
+
+    RequirementPolicy(BigDecimal requiredPercent, RoundingMode roundingMode, int requiredNumber, boolean useHigherRequirementType) {
+        if (roundingMode != RoundingMode.HALF_UP && roundingMode != RoundingMode.FLOOR && roundingMode != RoundingMode.CEILING) {
+            throw new IllegalArgumentException("Unsupported rounding mode: " + roundingMode);
+        }
+        this.requiredPercent = requiredPercent;
+        this.roundingMode = roundingMode;
+        this.requiredNumber = requiredNumber;
+        this.useHigherRequirementType = useHigherRequirementType;
+
+        BigDecimal stripped = requiredPercent.stripTrailingZeros();
+        if (stripped.scale() < 0) {
+            stripped = stripped.setScale(0);
+        }
+        integerArithmetic = stripped.scale() <= MAX_INTEGER_SCALE;
+        if (integerArithmetic) {
+            percentNumerator = stripped.unscaledValue().longValueExact();
+            percentDenominator = BigInteger.TEN.pow(stripped.scale()).longValueExact();
+        } else {
+            percentNumerator = 0;
+            percentDenominator = 1;
+        }
+    }
+
+    /**
+     * Maps the "rounding_mode" configuration value to a rounding mode.
+     * 0 = Standard rounding, 1 = Round down always, anything else = Round up always
+     */
+    static RoundingMode roundingModeOf(int configValue) {
+        switch (configValue) {
+            case 0:
+                return RoundingMode.HALF_UP;
+            case 1:
+                return RoundingMode.FLOOR;
+            case 2:
+            default:
+                return RoundingMode.CEILING;
+        }
+    }
+
+    /**
+     * @param population the number of players counted towards the requirement
+     * @return the number of players that need to be sleeping to skip the night, always at least 1
+     */
+    int getRequired(int population) {
+        int requiredFromPercent = getRequiredFromPercent(population);
+
+        int required;
+        if (requiredNumber <= 0) {
+            required = requiredFromPercent;
+        } else {
+            // Cap the required number of players sleeping at the current player count
+            int realRequiredNumberSleeping = Math.min(population, requiredNumber);
+
+            if (useHigherRequirementType) {
+                required = Math.max(requiredFromPercent, realRequiredNumberSleeping);
+            } else {
+                required = Math.min(requiredFromPercent, realRequiredNumberSleeping);
+            }
+        }
+
+        return Math.max(required, 1);
+    }
+
+    private int getRequiredFromPercent(int population) {
+        if (!integerArithmetic) {
+            return BigDecimal.valueOf(population).multiply(requiredPercent).setScale(0, roundingMode).intValue();
+        }
+
+        // population and the percentage are non-negative, so flooring is plain integer division
+        long product = population * percentNumerator;
+        switch (roundingMode) {
+            case HALF_UP:
+                return (int) ((2 * product + percentDenominator) / (2 * percentDenominator));
+            case FLOOR:
+                return (int) (product / percentDenominator);
+            case CEILING:
+            default:
+                return (int) ((product + percentDenominator - 1) / percentDenominator);
+        }
+    }
+}
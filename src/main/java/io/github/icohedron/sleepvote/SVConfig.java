@@ -0,0 +1,306 @@
+package io.github.icohedron.sleepvote;
+
+import ninja.leaping.configurate.ConfigurationNode;
+import org.slf4j.Logger;
+import org.spongepowered.api.text.Text;
+
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An immutable snapshot of the configuration file. A new snapshot is parsed on every reload and
+ * swapped into the {@link SleepVoteManager} as a whole, so readers never see a half-applied configuration.
+ */
+final class SVConfig {
+
+    private final RequirementPolicy requirementPolicy;
+
+    private final boolean enablePrefix;
+    private final boolean messageLogging;
+    private final boolean sound;
+    private final boolean ignoreAdmins;
+    private final boolean ignoreAfkPlayers;
+    private final boolean auditLogEcho;
+    private final int auditLogMaxKilobytes;
+    private final boolean traceRecording;
+    private final int traceMaxMegabytes;
+    private final int idleTimeoutTicks;
+
+    private final MessageTemplate wakeupMessage;
+    private final MessageTemplate enterBedMessage;
+    private final MessageTemplate exitBedMessage;
+    private final MessageTemplate summaryMessage;
+    private final MessageTemplate progressMessage;
+
+    private final int broadcastWindowTicks;
+
+    private final ProgressDisplay.Mode progressDisplayMode;
+    private final int progressUpdateIntervalTicks;
+
+    private final boolean[] ignoredGameModes;
+
+    private final int reconcileIntervalTicks;
+    private final int eligibilityTtlTicks;
+    private final int metricsFileIntervalTicks;
+
+    private final int nightSkipDurationTicks;
+    private final int nightSkipMaxStep;
+
+    private final boolean clusterEnabled;
+    private final String clusterNodeId;
+    private final boolean clusterCoordinator;
+    private final Set<String> clusterWorlds;
+    private final InetSocketAddress clusterAddress;
+    private final List<InetSocketAddress> clusterPeers;
+
+    private SVConfig(ConfigurationNode configNode, Logger logger) {
+        String reqPercent = configNode.getNode("required_percent_sleeping").getString("0.5");
+        BigDecimal reqPercentBD = new BigDecimal(reqPercent);
+        BigDecimal requiredPercentSleeping;
+
+        if (reqPercentBD.compareTo(BigDecimal.ZERO) < 0 || reqPercentBD.compareTo(BigDecimal.ONE) > 0) {
+            requiredPercentSleeping = new BigDecimal("0.5");
+            logger.info("\"required_percent_sleeping\": The value of '" + requiredPercentSleeping + "' is invalid, it must be in the inclusive range of [0.0, 1.0]. Using default of 0.5");
+        } else {
+            requiredPercentSleeping = reqPercentBD;
+        }
+
+        requirementPolicy = new RequirementPolicy(requiredPercentSleeping,
+                RequirementPolicy.roundingModeOf(configNode.getNode("rounding_mode").getInt(2)),
+                configNode.getNode("required_number_sleeping").getInt(0),
+                configNode.getNode("use_higher_requirement_type").getBoolean(false));
+
+        enablePrefix = configNode.getNode("sleepvote_prefix").getBoolean(true);
+        messageLogging = configNode.getNode("enable_logging").getBoolean(true);
+        auditLogEcho = configNode.getNode("audit_log_console").getBoolean(true);
+        auditLogMaxKilobytes = Math.max(configNode.getNode("audit_log_max_kilobytes").getInt(1024), 1);
+        traceRecording = configNode.getNode("trace_recording").getBoolean(false);
+        traceMaxMegabytes = Math.max(configNode.getNode("trace_max_megabytes").getInt(64), 1);
+        sound = configNode.getNode("sound").getBoolean();
+        ignoreAdmins = configNode.getNode("ignore_admins").getBoolean(false);
+        ignoreAfkPlayers = configNode.getNode("ignore_afk_players").getBoolean();
+        idleTimeoutTicks = Math.max(configNode.getNode("idle_timeout_ticks").getInt(6000), 0);
+
+        Text prefix = enablePrefix ? Messenger.PREFIX : null;
+        wakeupMessage = MessageTemplate.compile(configNode.getNode("messages", "wakeup").getString("Wakey wakey, rise and shine!"), prefix);
+        enterBedMessage = MessageTemplate.compile(configNode.getNode("messages", "enter_bed").getString("<player> wants to sleep! <sleeping>/<active> (<percent>%)"), prefix);
+        exitBedMessage = MessageTemplate.compile(configNode.getNode("messages", "exit_bed").getString("<player> has left their bed. <sleeping>/<active> (<percent>%)"), prefix);
+        summaryMessage = MessageTemplate.compile(configNode.getNode("messages", "summary").getString("<sleeping>/<required> players are sleeping (<percent>%)"), prefix);
+        progressMessage = MessageTemplate.compile(configNode.getNode("messages", "progress").getString("<sleeping>/<required> players are sleeping"), null);
+
+        progressDisplayMode = ProgressDisplay.Mode.of(configNode.getNode("progress_display").getString("none"));
+        progressUpdateIntervalTicks = Math.max(configNode.getNode("progress_update_interval_ticks").getInt(10), 1);
+
+        broadcastWindowTicks = Math.max(configNode.getNode("broadcast_window_ticks").getInt(0), 0);
+
+        ignoredGameModes = new boolean[4];
+        ignoredGameModes[0] = configNode.getNode("ignored_gamemodes", "survival").getBoolean(false);
+        ignoredGameModes[1] = configNode.getNode("ignored_gamemodes", "creative").getBoolean(false);
+        ignoredGameModes[2] = configNode.getNode("ignored_gamemodes", "adventure").getBoolean(false);
+        ignoredGameModes[3] = configNode.getNode("ignored_gamemodes", "spectator").getBoolean(false);
+
+        int reconcileInterval = configNode.getNode("reconcile_interval_ticks").getInt(20);
+        if (reconcileInterval < 1) {
+            reconcileIntervalTicks = 20;
+            logger.info("\"reconcile_interval_ticks\": The value of '" + reconcileInterval + "' is invalid, it must be at least 1. Using default of 20");
+        } else {
+            reconcileIntervalTicks = reconcileInterval;
+        }
+
+        eligibilityTtlTicks = Math.max(configNode.getNode("eligibility_ttl_ticks").getInt(600), 0);
+
+        metricsFileIntervalTicks = Math.max(configNode.getNode("metrics_file_interval_ticks").getInt(1200), 0);
+
+        nightSkipDurationTicks = Math.max(configNode.getNode("night_skip_duration_ticks").getInt(0), 0);
+
+        int maxStep = configNode.getNode("night_skip_max_step").getInt(100);
+        if (maxStep < 1) {
+            nightSkipMaxStep = 100;
+            logger.info("\"night_skip_max_step\": The value of '" + maxStep + "' is invalid, it must be at least 1. Using default of 100");
+        } else {
+            nightSkipMaxStep = maxStep;
+        }
+
+        clusterEnabled = configNode.getNode("cluster", "enabled").getBoolean(false);
+        clusterCoordinator = configNode.getNode("cluster", "coordinator").getBoolean(false);
+
+        Set<String> worlds = new HashSet<>();
+        for (ConfigurationNode worldNode : configNode.getNode("cluster", "worlds").getChildrenList()) {
+            worlds.add(worldNode.getString());
+        }
+        clusterWorlds = Collections.unmodifiableSet(worlds);
+
+        String address = configNode.getNode("cluster", "address").getString("127.0.0.1:25590");
+        InetSocketAddress parsedAddress = parseAddress(address);
+        if (parsedAddress == null) {
+            parsedAddress = new InetSocketAddress("127.0.0.1", 25590);
+            logger.info("\"cluster.address\": The value of '" + address + "' is invalid, it must be of the form 'host:port'. Using default of 127.0.0.1:25590");
+        }
+        clusterAddress = parsedAddress;
+
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (ConfigurationNode peerNode : configNode.getNode("cluster", "peers").getChildrenList()) {
+            InetSocketAddress peer = parseAddress(peerNode.getString(""));
+            if (peer != null) {
+                peers.add(peer);
+            } else {
+                logger.info("\"cluster.peers\": The value of '" + peerNode.getString() + "' is invalid, it must be of the form 'host:port'. Ignoring it");
+            }
+        }
+        clusterPeers = Collections.unmodifiableList(peers);
+
+        String nodeId = configNode.getNode("cluster", "node_id").getString("");
+        clusterNodeId = nodeId.isEmpty() ? address : nodeId;
+    }
+
+    private static InetSocketAddress parseAddress(String address) {
+        int separator = address.lastIndexOf(':');
+        if (separator <= 0) {
+            return null;
+        }
+        try {
+            return new InetSocketAddress(address.substring(0, separator), Integer.parseInt(address.substring(separator + 1)));
+        } catch (IllegalArgumentException e) { // Also thrown for ports out of range
+            return null;
+        }
+    }
+
+    static SVConfig load(ConfigurationNode configNode, Logger logger) {
+        return new SVConfig(configNode, logger);
+    }
+
+    RequirementPolicy getRequirementPolicy() {
+        return requirementPolicy;
+    }
+
+    boolean isPrefixEnabled() {
+        return enablePrefix;
+    }
+
+    boolean isAuditLogEchoEnabled() {
+        return auditLogEcho;
+    }
+
+    int getAuditLogMaxKilobytes() {
+        return auditLogMaxKilobytes;
+    }
+
+    boolean isTraceRecordingEnabled() {
+        return traceRecording;
+    }
+
+    int getTraceMaxMegabytes() {
+        return traceMaxMegabytes;
+    }
+
+    boolean isMessageLoggingEnabled() {
+        return messageLogging;
+    }
+
+    boolean isSoundEnabled() {
+        return sound;
+    }
+
+    boolean areAdminsIgnored() {
+        return ignoreAdmins;
+    }
+
+    boolean areAfkPlayersIgnored() {
+        return ignoreAfkPlayers;
+    }
+
+    int getIdleTimeoutTicks() {
+        return idleTimeoutTicks;
+    }
+
+    MessageTemplate getWakeupMessage() {
+        return wakeupMessage;
+    }
+
+    MessageTemplate getEnterBedMessage() {
+        return enterBedMessage;
+    }
+
+    MessageTemplate getExitBedMessage() {
+        return exitBedMessage;
+    }
+
+    MessageTemplate getSummaryMessage() {
+        return summaryMessage;
+    }
+
+    MessageTemplate getProgressMessage() {
+        return progressMessage;
+    }
+
+    ProgressDisplay.Mode getProgressDisplayMode() {
+        return progressDisplayMode;
+    }
+
+    int getProgressUpdateIntervalTicks() {
+        return progressUpdateIntervalTicks;
+    }
+
+    int getBroadcastWindowTicks() {
+        return broadcastWindowTicks;
+    }
+
+    /**
+     * @param index 0 = survival, 1 = creative, 2 = adventure, 3 = spectator
+     */
+    boolean isGameModeIgnored(int index) {
+        return ignoredGameModes[index];
+    }
+
+    int getReconcileIntervalTicks() {
+        return reconcileIntervalTicks;
+    }
+
+    int getEligibilityTtlTicks() {
+        return eligibilityTtlTicks;
+    }
+
+    int getMetricsFileIntervalTicks() {
+        return metricsFileIntervalTicks;
+    }
+
+    int getNightSkipDurationTicks() {
+        return nightSkipDurationTicks;
+    }
+
+    int getNightSkipMaxStep() {
+        return nightSkipMaxStep;
+    }
+
+    boolean isClusterEnabled() {
+        return clusterEnabled;
+    }
+
+    String getClusterNodeId() {
+        return clusterNodeId;
+    }
+
+    boolean isClusterCoordinator() {
+        return clusterCoordinator;
+    }
+
+    /**
+     * @return the names of the worlds shared across the cluster, or an empty set if every world is shared
+     */
+    Set<String> getClusterWorlds() {
+        return clusterWorlds;
+    }
+
+    InetSocketAddress getClusterAddress() {
+        return clusterAddress;
+    }
+
+    List<InetSocketAddress> getClusterPeers() {
+        return clusterPeers;
+    }
+}
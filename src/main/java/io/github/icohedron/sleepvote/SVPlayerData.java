@@ -1,18 +1,24 @@
 package io.github.icohedron.sleepvote;
 
-import org.spongepowered.api.scheduler.Task;
-
 import java.util.Optional;
+import java.util.UUID;
 
 public class SVPlayerData {
 
-    private boolean mute;
-    private boolean hidden;
-    private Task sleepTask;
+    // Read from the asynchronous voting loop, so every field is volatile
+    private volatile boolean mute;
+    private volatile boolean hidden;
+    private volatile long bedEntryHandle; // Of the pending bed entry confirmation in the BedEntryScheduler
+    private volatile boolean inBed;
+    private volatile boolean ignored; // Cached result of SleepVoteManager.isIgnored
+    private volatile long ignoredExpiryTick;
+    private volatile UUID eligibleWorld; // The world in which this player is counted towards the sleep requirement, if any
 
-    SVPlayerData() {
-        this.mute = false;
-        this.hidden = false;
+    SVPlayerData(boolean mute, boolean hidden) {
+        this.mute = mute;
+        this.hidden = hidden;
+        this.bedEntryHandle = BedEntryScheduler.NONE;
+        this.ignoredExpiryTick = Long.MIN_VALUE; // Not computed yet
     }
 
     public boolean isMute() {
@@ -31,11 +37,40 @@ public class SVPlayerData {
         this.hidden = hidden;
     }
 
-    public Optional<Task> getSleepTask() {
-        return Optional.ofNullable(sleepTask);
+    boolean isIgnored() {
+        return ignored;
+    }
+
+    long getIgnoredExpiryTick() {
+        return ignoredExpiryTick;
+    }
+
+    void setIgnored(boolean ignored, long expiryTick) {
+        this.ignored = ignored;
+        this.ignoredExpiryTick = expiryTick;
+    }
+
+    boolean isInBed() {
+        return inBed;
+    }
+
+    void setInBed(boolean inBed) {
+        this.inBed = inBed;
+    }
+
+    long getBedEntryHandle() {
+        return bedEntryHandle;
+    }
+
+    void setBedEntryHandle(long bedEntryHandle) {
+        this.bedEntryHandle = bedEntryHandle;
+    }
+
+    public Optional<UUID> getEligibleWorld() {
+        return Optional.ofNullable(eligibleWorld);
     }
 
-    public void setSleepTask(Task sleepTask) {
-        this.sleepTask = sleepTask;
+    void setEligibleWorld(UUID eligibleWorld) {
+        this.eligibleWorld = eligibleWorld;
     }
 }
@@ -1,23 +1,91 @@
 package io.github.icohedron.sleepvote;
 
-import java.util.HashSet;
+import org.spongepowered.api.world.World;
+
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class SVWorldData {
 
-    private Set<UUID> sleepingPlayers;
-    private boolean skipping;
+    private final World world; // Kept so that the asynchronous voting loop never has to look the world up on the server
+    private final String worldName; // Likewise, read once on the main thread when the data is created
+
+    // Both sets are read and written by the main thread as well as the asynchronous voting loop
+    private final Set<UUID> sleepingPlayers;
+    private final Set<UUID> eligiblePlayers; // Players in this world who count towards the sleep requirement
+    private final WorldAudience audience; // Every player in this world
+    private final WorldAudience soundAudience; // Every player in this world who hasn't muted SleepVote
+    private volatile boolean skipping;
+    private volatile long voteStartNanos; // When the first player of the current vote started sleeping, or 0 if none
+    private volatile int remoteSleepingCount; // Sleeping players of this world on the other servers of the cluster
+    private volatile int remoteEligibleCount;
 
-    SVWorldData() {
-        sleepingPlayers = new HashSet<>();
+    SVWorldData(World world) {
+        this.world = world;
+        worldName = world == null ? "" : world.getName();
+        audience = new WorldAudience();
+        soundAudience = new WorldAudience();
+        sleepingPlayers = ConcurrentHashMap.newKeySet();
+        eligiblePlayers = ConcurrentHashMap.newKeySet();
         skipping = false;
     }
 
+    World getWorld() {
+        return world;
+    }
+
+    String getWorldName() {
+        return worldName;
+    }
+
     public Set<UUID> getSleepingPlayers() {
         return sleepingPlayers;
     }
 
+    public boolean isEligible(UUID playerUuid) {
+        return eligiblePlayers.contains(playerUuid);
+    }
+
+    /**
+     * @return the number of sleeping players, including those on the other servers of the cluster
+     */
+    public int getSleepingCount() {
+        return sleepingPlayers.size() + remoteSleepingCount;
+    }
+
+    public int getEligibleCount() {
+        return eligiblePlayers.size();
+    }
+
+    /**
+     * @return the number of players counting towards the sleep requirement, including those on the other servers of the cluster
+     */
+    public int getTotalEligibleCount() {
+        return eligiblePlayers.size() + remoteEligibleCount;
+    }
+
+    void setRemoteCounts(int sleepingCount, int eligibleCount) {
+        remoteSleepingCount = sleepingCount;
+        remoteEligibleCount = eligibleCount;
+    }
+
+    void addEligiblePlayer(UUID playerUuid) {
+        eligiblePlayers.add(playerUuid);
+    }
+
+    void removeEligiblePlayer(UUID playerUuid) {
+        eligiblePlayers.remove(playerUuid);
+    }
+
+    WorldAudience getAudience() {
+        return audience;
+    }
+
+    WorldAudience getSoundAudience() {
+        return soundAudience;
+    }
+
     public boolean isSkipping() {
         return skipping;
     }
@@ -25,4 +93,12 @@ public class SVWorldData {
     public void setSkipping(boolean skipping) {
         this.skipping = skipping;
     }
+
+    long getVoteStartNanos() {
+        return voteStartNanos;
+    }
+
+    void setVoteStartNanos(long voteStartNanos) {
+        this.voteStartNanos = voteStartNanos;
+    }
 }
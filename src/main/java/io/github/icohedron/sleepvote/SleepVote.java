@@ -5,6 +5,7 @@ import ninja.leaping.configurate.ConfigurationNode;
 import ninja.leaping.configurate.commented.CommentedConfigurationNode;
 import ninja.leaping.configurate.hocon.HoconConfigurationLoader;
 import ninja.leaping.configurate.loader.ConfigurationLoader;
+import io.github.icohedron.sleepvote.api.SleepVoteService;
 import org.slf4j.Logger;
 import org.spongepowered.api.Sponge;
 import org.spongepowered.api.command.CommandResult;
@@ -43,13 +44,15 @@ public class SleepVote {
 
     @Listener
     public void onInitializationEvent(GameInitializationEvent event) {
-        loadConfiguration();
+        sleepVoteManager = new SleepVoteManager(this, loadConfiguration()); // Manages the core functionality of the plugin
+        Sponge.getEventManager().registerListeners(this, sleepVoteManager);
+        Sponge.getServiceManager().setProvider(this, SleepVoteService.class, new SleepVoteServiceImpl(sleepVoteManager));
         initializeCommands();
         logger.info("Finished initialization");
         Sponge.getServiceManager().provide(PermissionService.class);
     }
 
-    private void loadConfiguration() {
+    private SVConfig loadConfiguration() {
         Path configurationFilePath = configurationDirectory.resolve(SETTINGS_CONFIG_NAME);
         ConfigurationLoader<CommentedConfigurationNode> settingsConfigurationLoader = HoconConfigurationLoader.builder().setPath(configurationFilePath).build();
         Optional<ConfigurationNode> rootNode;
@@ -89,10 +92,7 @@ public class SleepVote {
 
         }
 
-        ConfigurationNode root = rootNode.get();
-        sleepVoteManager = new SleepVoteManager(this, root); // Manages the core functionality of the plugin
-
-        Sponge.getEventManager().registerListeners(this, sleepVoteManager);
+        return SVConfig.load(rootNode.get(), logger);
     }
 
     private void initializeCommands() {
@@ -132,6 +132,12 @@ public class SleepVote {
                     .assign(PermissionDescription.ROLE_USER, true)
                     .register();
         
+            builder = permissionService.newDescriptionBuilder(this);
+            builder.id("sleepvote.command.stats")
+                    .description(Text.of("Allows the user to view the performance statistics of SleepVote"))
+                    .assign(PermissionDescription.ROLE_ADMIN, true)
+                    .register();
+
             builder = permissionService.newDescriptionBuilder(this);
             builder.id("sleepvote.command")
                     .description(Text.of("Allows the user to execute all SleepVote commands"))
@@ -236,12 +242,25 @@ public class SleepVote {
                 })
                 .build();
 
+        CommandSpec statsCommand = CommandSpec.builder()
+                .description(Text.of("Shows performance statistics of SleepVote"))
+                .permission("sleepvote.command.stats")
+                .executor((src, args) -> {
+                    src.sendMessage(sleepVoteManager.getMessenger().addPrefix(Text.of("Statistics since the server started:")));
+                    for (String line : sleepVoteManager.getMetrics().summarize()) {
+                        src.sendMessage(Text.of(line));
+                    }
+                    return CommandResult.success();
+                })
+                .build();
+
         CommandSpec sleepvoteCommand = CommandSpec.builder()
                 .description(Text.of("The one command for all of SleepVote"))
                 .child(reloadCommand, "reload", "r")
                 .child(hideCommand, "hide", "h")
                 .child(muteCommand, "mute", "m")
                 .child(statusCommand, "status", "s")
+                .child(statsCommand, "stats")
                 .build();
 
         Sponge.getCommandManager().register(this, sleepvoteCommand, "sleepvote", "sv");
@@ -253,12 +272,14 @@ public class SleepVote {
     }
 
     private void reload() {
-        sleepVoteManager.dispose();
-        Sponge.getEventManager().unregisterListeners(sleepVoteManager);
-        loadConfiguration();
+        sleepVoteManager.applyConfig(loadConfiguration());
     }
 
     Logger getLogger() {
         return logger;
     }
+
+    Path getConfigurationDirectory() {
+        return configurationDirectory;
+    }
 }
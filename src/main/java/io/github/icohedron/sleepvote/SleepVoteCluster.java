@@ -0,0 +1,403 @@
+package io.github.icohedron.sleepvote;
+
+import io.github.icohedron.sleepvote.api.ClusterTransport;
+import org.slf4j.Logger;
+import org.spongepowered.api.Sponge;
+import org.spongepowered.api.scheduler.Task;
+import org.spongepowered.api.world.World;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shares the votes of worlds that are split across several servers. Every server publishes its own sleeping and
+ * eligible player counts of each shared world (identified by name) whenever they change, and adds up the counts of the
+ * others. Only the coordinator decides whether the night is skipped, and tells every server to skip it at once.
+ * <p>
+ * Each skip starts a new vote "epoch" for the world. Counts from an older epoch were sent before the server learned
+ * about the skip and are ignored, so that players who were already woken up can't cause a second skip.
+ * <p>
+ * Transports may lose, duplicate or reorder messages. Every message carries a sequence number, and a message that isn't
+ * newer than the last one received from its sender is dropped. Every few seconds, each server sends its full state
+ * (the epoch, counts and last skip of every world it knows), which repairs whatever was lost in the meantime: a server
+ * that learns about a newer epoch this way still skips the night if its world hasn't reached the morning yet. The full
+ * state is split across as many messages as needed to keep each of them under {@link #MAX_MESSAGE_BYTES}.
+ * Servers that haven't been heard from for several of these intervals are assumed to be gone.
+ * <p>
+ * Messages about worlds that aren't shared by this server are ignored, even if the sender shares them.
+ */
+class SleepVoteCluster {
+
+    private static final byte HELLO = 0; // A server joined and wants everyone's counts
+    private static final byte COUNTS = 1;
+    private static final byte SKIP = 2;
+    private static final byte BYE = 3; // A server left, its counts no longer apply
+    private static final byte STATE = 4; // Some of the worlds the sender knows, sent periodically
+
+    static final int MAX_MESSAGE_BYTES = 1024; // So that every message fits into a single UDP datagram
+
+    private static final int HEARTBEAT_INTERVAL_TICKS = 100;
+    private static final int NODE_TIMEOUT_TICKS = HEARTBEAT_INTERVAL_TICKS * 4;
+
+    private static final long NOT_SENT = Long.MIN_VALUE;
+
+    private final SleepVote sleepVote;
+    private final SleepVoteManager sleepVoteManager;
+    private final Logger logger;
+    private final ClusterTransport transport;
+    private final String nodeId;
+    private final long incarnation; // Tells the messages of a restarted server apart from those sent before it restarted
+    private final boolean coordinator;
+    private final Set<String> sharedWorlds; // Every world is shared if empty
+
+    private final Map<String, ClusterWorld> clusterWorlds;
+    private final Map<String, Node> nodes; // The other servers. Only accessed from the main thread
+    private long sequence; // Guarded by this
+
+    private Task heartbeatTask;
+
+    SleepVoteCluster(SleepVote sleepVote, SleepVoteManager sleepVoteManager, ClusterTransport transport,
+                     String nodeId, boolean coordinator, Set<String> sharedWorlds) {
+        this.sleepVote = sleepVote;
+        this.sleepVoteManager = sleepVoteManager;
+        logger = sleepVote.getLogger();
+        this.transport = transport;
+        this.nodeId = nodeId;
+        incarnation = new Random().nextLong();
+        this.coordinator = coordinator;
+        this.sharedWorlds = sharedWorlds;
+        clusterWorlds = new ConcurrentHashMap<>();
+        nodes = new HashMap<>();
+    }
+
+    void start() {
+        // Messages are handled on the main thread, in the order they were received
+        transport.start(message -> sleepVoteManager.getMainThreadQueue().submit(() -> handle(message)));
+        send(HELLO, out -> {});
+        heartbeatTask = Task.builder().execute(this::heartbeat).intervalTicks(HEARTBEAT_INTERVAL_TICKS).submit(sleepVote);
+    }
+
+    void stop() {
+        heartbeatTask.cancel();
+        send(BYE, out -> {});
+        transport.stop();
+    }
+
+    boolean isShared(World world) {
+        return isShared(world.getName());
+    }
+
+    private boolean isShared(String worldName) {
+        return sharedWorlds.isEmpty() || sharedWorlds.contains(worldName);
+    }
+
+    boolean isCoordinator() {
+        return coordinator;
+    }
+
+    /**
+     * Sends the counts of this server for the world to the others, unless they haven't changed since they were last sent
+     */
+    void publishCounts(World world, int sleeping, int eligible) {
+        ClusterWorld clusterWorld = getClusterWorld(world.getName());
+        long counts = pack(sleeping, eligible);
+        synchronized (clusterWorld) { // Keeps the messages in the same order as the changes
+            if (clusterWorld.lastSent != counts) {
+                clusterWorld.lastSent = counts;
+                int epoch = clusterWorld.epoch;
+                long skipTargetTime = clusterWorld.skipTargetTime;
+                send(COUNTS, out -> writeCounts(out, world.getName(), epoch, counts, skipTargetTime));
+            }
+        }
+    }
+
+    /**
+     * Only called on the coordinator. Starts a new epoch for the world and tells every other server to skip its night
+     */
+    void broadcastSkip(World world, long targetTime) {
+        ClusterWorld clusterWorld = getClusterWorld(world.getName());
+        int epoch;
+        synchronized (clusterWorld) {
+            epoch = ++clusterWorld.epoch;
+            clusterWorld.skipTargetTime = targetTime;
+        }
+        send(SKIP, out -> {
+            out.writeUTF(world.getName());
+            out.writeInt(epoch);
+            out.writeLong(targetTime);
+        });
+        clearRemoteSleeping(world, clusterWorld);
+    }
+
+    /**
+     * Runs on the main thread. Sends the full state of this server and forgets the servers that went silent
+     */
+    private void heartbeat() {
+        sendState();
+
+        int now = Sponge.getServer().getRunningTimeTicks();
+        Iterator<Map.Entry<String, Node>> iterator = nodes.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Node> entry = iterator.next();
+            if (now - entry.getValue().lastHeardTick > NODE_TIMEOUT_TICKS) {
+                iterator.remove();
+                forgetNode(entry.getKey());
+                logger.warn("Haven't heard from cluster server \"" + entry.getKey() + "\" in a while. Its counts no longer apply");
+            }
+        }
+    }
+
+    /**
+     * Sends the state of every world in as few messages as possible. Receivers apply each message on its own, so losing
+     * one of them only loses the worlds it carried until the next heartbeat
+     */
+    private void sendState() {
+        List<byte[]> entries = new ArrayList<>();
+        for (Map.Entry<String, ClusterWorld> entry : clusterWorlds.entrySet()) {
+            ClusterWorld clusterWorld = entry.getValue();
+            synchronized (clusterWorld) {
+                if (clusterWorld.lastSent != NOT_SENT || clusterWorld.epoch > 0) {
+                    entries.add(toBytes(out -> writeCounts(out, entry.getKey(), clusterWorld.epoch,
+                            clusterWorld.lastSent == NOT_SENT ? 0 : clusterWorld.lastSent, clusterWorld.skipTargetTime)));
+                }
+            }
+        }
+
+        int budget = MAX_MESSAGE_BYTES - headerBytes() - Integer.BYTES; // The world count comes first
+        int start = 0;
+        do { // Even without any worlds, as the others also use it to tell that this server is still there
+            int end = start;
+            int bytes = 0;
+            while (end < entries.size() && (end == start || bytes + entries.get(end).length <= budget)) {
+                bytes += entries.get(end++).length;
+            }
+            List<byte[]> batch = entries.subList(start, end);
+            send(STATE, out -> {
+                out.writeInt(batch.size());
+                for (byte[] entry : batch) {
+                    out.write(entry);
+                }
+            });
+            start = end;
+        } while (start < entries.size());
+    }
+
+    private void handle(byte[] message) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(message))) {
+            byte type = in.readByte();
+            String sender = in.readUTF();
+            long senderIncarnation = in.readLong();
+            long senderSequence = in.readLong();
+            if (sender.equals(nodeId)) {
+                return;
+            }
+
+            Node node = nodes.get(sender);
+            if (node == null || node.incarnation != senderIncarnation) { // A new server, or one that restarted
+                if (node != null) {
+                    forgetNode(sender);
+                }
+                node = new Node(senderIncarnation);
+                nodes.put(sender, node);
+                if (type != BYE) {
+                    sendState(); // Rather than having it wait for the next heartbeat
+                }
+            } else if (senderSequence <= node.lastSequence) {
+                return; // A duplicate, or overtaken by a newer message. Whatever it carried is sent again with the next heartbeat
+            }
+            node.lastSequence = senderSequence;
+            node.lastHeardTick = Sponge.getServer().getRunningTimeTicks();
+
+            switch (type) {
+                case HELLO:
+                    break;
+                case COUNTS:
+                    readCounts(in, sender);
+                    break;
+                case STATE: {
+                    int worlds = in.readInt();
+                    for (int i = 0; i < worlds; i++) {
+                        readCounts(in, sender);
+                    }
+                    break;
+                }
+                case SKIP: {
+                    String worldName = in.readUTF();
+                    int epoch = in.readInt();
+                    long targetTime = in.readLong();
+                    if (!isShared(worldName)) {
+                        break;
+                    }
+                    ClusterWorld clusterWorld = getClusterWorld(worldName);
+                    if (epoch > clusterWorld.epoch) {
+                        adoptEpoch(worldName, clusterWorld, epoch, targetTime);
+                    }
+                    break;
+                }
+                case BYE:
+                    nodes.remove(sender);
+                    forgetNode(sender);
+                    break;
+                default:
+                    logger.warn("Received an unknown cluster message from \"" + sender + "\". Are all servers running the same version of SleepVote?");
+            }
+        } catch (IOException e) {
+            logger.error("Received a malformed cluster message!");
+            logger.error(e.getMessage());
+        }
+    }
+
+    private void readCounts(DataInputStream in, String sender) throws IOException {
+        String worldName = in.readUTF();
+        int epoch = in.readInt();
+        long counts = in.readLong();
+        long skipTargetTime = in.readLong();
+        if (!isShared(worldName)) {
+            return;
+        }
+        ClusterWorld clusterWorld = getClusterWorld(worldName);
+        if (epoch < clusterWorld.epoch) {
+            return; // Sent before the sender learned about the last skip
+        }
+        if (epoch > clusterWorld.epoch) { // This server missed a skip, because it joined late or the message was lost
+            adoptEpoch(worldName, clusterWorld, epoch, skipTargetTime);
+        }
+        Long previous = clusterWorld.nodeCounts.put(sender, counts);
+        if (previous == null || previous != counts) {
+            updateRemoteCounts(worldName, clusterWorld);
+        }
+    }
+
+    /**
+     * Skips the night of the world unless it is already morning, e.g. because the server joined after the skip.
+     * The counts sent so far belong to an old epoch, so they are sent again as part of the new one
+     */
+    private void adoptEpoch(String worldName, ClusterWorld clusterWorld, int epoch, long skipTargetTime) {
+        synchronized (clusterWorld) {
+            clusterWorld.epoch = epoch;
+            clusterWorld.skipTargetTime = skipTargetTime;
+            clusterWorld.lastSent = NOT_SENT;
+        }
+        Sponge.getServer().getWorld(worldName).ifPresent(world -> {
+            clearRemoteSleeping(world, clusterWorld);
+            if (world.getProperties().getWorldTime() < skipTargetTime) {
+                sleepVoteManager.startClusterSkip(world, skipTargetTime); // The counts are sent once the skip is done
+            } else {
+                sleepVoteManager.publishClusterCounts(world);
+            }
+        });
+    }
+
+    private void forgetNode(String node) {
+        for (Map.Entry<String, ClusterWorld> entry : clusterWorlds.entrySet()) {
+            if (entry.getValue().nodeCounts.remove(node) != null) {
+                updateRemoteCounts(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void clearRemoteSleeping(World world, ClusterWorld clusterWorld) {
+        clusterWorld.nodeCounts.replaceAll((node, counts) -> pack(0, eligible(counts)));
+        updateRemoteCounts(world.getName(), clusterWorld);
+    }
+
+    private void updateRemoteCounts(String worldName, ClusterWorld clusterWorld) {
+        int sleeping = 0;
+        int eligible = 0;
+        for (long counts : clusterWorld.nodeCounts.values()) {
+            sleeping += sleeping(counts);
+            eligible += eligible(counts);
+        }
+        int remoteSleeping = sleeping;
+        int remoteEligible = eligible;
+        Sponge.getServer().getWorld(worldName).ifPresent(world -> sleepVoteManager.setRemoteCounts(world, remoteSleeping, remoteEligible));
+    }
+
+    private ClusterWorld getClusterWorld(String worldName) {
+        return clusterWorlds.computeIfAbsent(worldName, name -> new ClusterWorld());
+    }
+
+    /**
+     * Synchronized so that the messages are handed to the transport in the order of their sequence numbers
+     */
+    private synchronized void send(byte type, MessageBody body) {
+        transport.send(toBytes(out -> {
+            out.writeByte(type);
+            out.writeUTF(nodeId);
+            out.writeLong(incarnation);
+            out.writeLong(++sequence);
+            body.write(out);
+        }));
+    }
+
+    /**
+     * @return the size of the type, sender and sequence number every message starts with
+     */
+    private int headerBytes() {
+        return toBytes(out -> out.writeUTF(nodeId)).length + Byte.BYTES + Long.BYTES * 2;
+    }
+
+    private static byte[] toBytes(MessageBody body) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            body.write(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Can't happen when writing to memory
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeCounts(DataOutputStream out, String worldName, int epoch, long counts, long skipTargetTime) throws IOException {
+        out.writeUTF(worldName);
+        out.writeInt(epoch);
+        out.writeLong(counts);
+        out.writeLong(skipTargetTime);
+    }
+
+    private static long pack(int sleeping, int eligible) {
+        return ((long) sleeping << 32) | (eligible & 0xFFFFFFFFL);
+    }
+
+    private static int sleeping(long counts) {
+        return (int) (counts >>> 32);
+    }
+
+    private static int eligible(long counts) {
+        return (int) counts;
+    }
+
+    private interface MessageBody {
+
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static final class Node {
+
+        private final long incarnation;
+        private long lastSequence;
+        private int lastHeardTick;
+
+        private Node(long incarnation) {
+            this.incarnation = incarnation;
+        }
+    }
+
+    private static final class ClusterWorld {
+
+        private final Map<String, Long> nodeCounts = new ConcurrentHashMap<>(); // The counts of the other servers
+        private volatile int epoch;
+        private long skipTargetTime; // The world time the night of the current epoch was skipped to. Guarded by this
+        private long lastSent = NOT_SENT; // Guarded by this
+    }
+}
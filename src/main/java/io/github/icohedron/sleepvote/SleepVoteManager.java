@@ -1,242 +1,557 @@
 package io.github.icohedron.sleepvote;
 
-import ninja.leaping.configurate.ConfigurationNode;
+import io.github.icohedron.sleepvote.api.ClusterTransport;
+import io.github.icohedron.sleepvote.api.NightSkipEvent;
+import io.github.icohedron.sleepvote.api.VoteChangeEvent;
 import org.slf4j.Logger;
 import org.spongepowered.api.Sponge;
 import org.spongepowered.api.data.key.Keys;
+import org.spongepowered.api.data.value.immutable.ImmutableValue;
 import org.spongepowered.api.effect.sound.SoundTypes;
 import org.spongepowered.api.entity.living.player.Player;
 import org.spongepowered.api.entity.living.player.gamemode.GameMode;
 import org.spongepowered.api.entity.living.player.gamemode.GameModes;
+import org.spongepowered.api.event.Event;
 import org.spongepowered.api.event.Listener;
+import org.spongepowered.api.event.Order;
 import org.spongepowered.api.event.action.SleepingEvent;
+import org.spongepowered.api.event.cause.Cause;
+import org.spongepowered.api.event.cause.EventContext;
+import org.spongepowered.api.event.data.ChangeDataHolderEvent;
+import org.spongepowered.api.event.entity.MoveEntityEvent;
+import org.spongepowered.api.event.entity.living.humanoid.ChangeGameModeEvent;
+import org.spongepowered.api.event.entity.living.humanoid.player.RespawnPlayerEvent;
+import org.spongepowered.api.event.filter.Getter;
 import org.spongepowered.api.event.filter.cause.First;
+import org.spongepowered.api.event.game.state.GameStartedServerEvent;
+import org.spongepowered.api.event.game.state.GameStoppingServerEvent;
+import org.spongepowered.api.event.network.ClientConnectionEvent;
+import org.spongepowered.api.event.world.UnloadWorldEvent;
 import org.spongepowered.api.plugin.PluginContainer;
 import org.spongepowered.api.scheduler.Task;
 import org.spongepowered.api.text.Text;
 import org.spongepowered.api.world.World;
 import org.spongepowered.api.world.storage.WorldProperties;
 
-import java.math.BigDecimal;
-import java.math.RoundingMode;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class SleepVoteManager {
 
+    private static final int BED_ENTRY_DELAY_TICKS = 80; // Time it takes to fall asleep
+
     private final SleepVote sleepVote;
     private final Logger logger;
+    private final MainThreadQueue mainThread;
     private final Messenger messenger;
-
-    private final ConfigurationNode config;
+    private final BroadcastCoalescer broadcastCoalescer;
+    private final PlayerPreferenceStore preferenceStore;
+    private final BedEntryScheduler bedEntryScheduler;
+    private final SleepVoteMetrics metrics;
+    private final VoteAuditLog auditLog;
+    private final ProgressDisplay progressDisplay;
+    private final EventTraceRecorder traceRecorder;
 
     private final Map<UUID, SVWorldData> uuidsvWorldDataMap;
     private final Map<UUID, SVPlayerData> uuidsvPlayerDataMap;
+    private final Set<UUID> activeWorlds; // Worlds with a vote in progress
+    private final Set<UUID> dirtyWorlds;
 
-    private final boolean enablePrefix;
-    private final boolean messageLogging;
-    private final boolean ignoreAdmins;
-
-    private final BigDecimal requiredPercentSleeping;
-    private final int requiredNumberSleeping;
-
-    private final String wakeupMessage;
-    private final String enterBedMessage;
-    private final String exitBedMessage;
+    private volatile SVConfig config;
 
-    private final boolean[] ignoredGameModes;
+    private volatile int ticksSinceReconcile; // Only written by the voting loop
 
-    private AFKManager afkManager;
+    private final AFKManager afkManager;
+    private volatile SleepVoteCluster cluster;
+    private IdleAFKProvider idleAFKProvider; // Only used without Nucleus
 
     private Task votingUpdateLoop;
 
-    SleepVoteManager(SleepVote sleepVote, ConfigurationNode configNode) {
+    SleepVoteManager(SleepVote sleepVote, SVConfig config) {
         this.sleepVote = sleepVote;
         logger = sleepVote.getLogger();
-        messenger = new Messenger(this, configNode.getNode("sound").getBoolean());
-        config = configNode;
+        mainThread = new MainThreadQueue(sleepVote);
+        metrics = new SleepVoteMetrics(sleepVote);
+        auditLog = new VoteAuditLog(sleepVote, mainThread);
+        messenger = new Messenger(this);
+        progressDisplay = new ProgressDisplay(sleepVote, this);
+        broadcastCoalescer = new BroadcastCoalescer(sleepVote, this);
+        preferenceStore = new PlayerPreferenceStore(sleepVote);
+        bedEntryScheduler = new BedEntryScheduler(sleepVote, this::confirmBedEntry);
+        afkManager = new AFKManager(this);
+        traceRecorder = new EventTraceRecorder(sleepVote, this);
+
+        uuidsvWorldDataMap = new ConcurrentHashMap<>();
+        uuidsvPlayerDataMap = new ConcurrentHashMap<>();
+        activeWorlds = ConcurrentHashMap.newKeySet();
+        dirtyWorlds = ConcurrentHashMap.newKeySet();
+
+        applyConfig(config);
 
-        // Configure according to the configuration file values
-
-        String reqPercent = configNode.getNode("required_percent_sleeping").getString("0.5");
-        BigDecimal reqPercentBD = new BigDecimal(reqPercent);
-        requiredNumberSleeping = configNode.getNode("required_number_sleeping").getInt(0);
-
-        if (reqPercentBD.compareTo(BigDecimal.ZERO) < 0 || reqPercentBD.compareTo(BigDecimal.ONE) > 0) {
-            requiredPercentSleeping = new BigDecimal("0.5");
-            logger.info("\"required_percent_sleeping\": The value of '" + requiredPercentSleeping + "' is invalid, it must be in the inclusive range of [0.0, 1.0]. Using default of 0.5");
-        } else {
-            requiredPercentSleeping = reqPercentBD;
-        }
-
-        enablePrefix = configNode.getNode("sleepvote_prefix").getBoolean(true);
-        messageLogging = configNode.getNode("enable_logging").getBoolean(true);
-        ignoreAdmins = configNode.getNode("ignore_admins").getBoolean(false);
-
-        wakeupMessage = configNode.getNode("messages", "wakeup").getString("Wakey wakey, rise and shine!");
-        enterBedMessage = configNode.getNode("messages", "enter_bed").getString("<player> wants to sleep! <sleeping>/<active> (<percent>%)");
-        exitBedMessage = configNode.getNode("messages", "exit_bed").getString("<player> has left their bed. <sleeping>/<active> (<percent>%)");
+        startVotingUpdateLoop();
+    }
 
-        ignoredGameModes = new boolean[4];
-        ignoredGameModes[0] = configNode.getNode("ignored_gamemodes", "survival").getBoolean(false);
-        ignoredGameModes[1] = configNode.getNode("ignored_gamemodes", "creative").getBoolean(false);
-        ignoredGameModes[2] = configNode.getNode("ignored_gamemodes", "adventure").getBoolean(false);
-        ignoredGameModes[3] = configNode.getNode("ignored_gamemodes", "spectator").getBoolean(false);
+    /**
+     * Swaps in a new configuration snapshot. Votes in progress, pending bed entries and per-player settings are kept
+     */
+    void applyConfig(SVConfig config) {
+        this.config = config;
+        metrics.setFileInterval(config.getMetricsFileIntervalTicks());
+        auditLog.configure(config.isAuditLogEchoEnabled(), config.getAuditLogMaxKilobytes());
+        progressDisplay.setMode(config.getProgressDisplayMode());
 
-        // Set up Nucleus Integration if functionality is requested
+        // Set up Nucleus Integration if functionality is requested, or fall back to the built-in idle detector
 
-        if (configNode.getNode("ignore_afk_players").getBoolean()) {
+        if (config.areAfkPlayersIgnored()) {
             Optional<PluginContainer> nucleus = Sponge.getPluginManager().getPlugin("nucleus");
             if (nucleus.isPresent()) {
-                afkManager = new AFKManager(this);
-                Sponge.getEventManager().registerListeners(sleepVote, afkManager);
+                if (!afkManager.hasProvider(NucleusAFKProvider.class)) {
+                    afkManager.addProvider(new NucleusAFKProvider(sleepVote));
+                }
+            } else if (config.getIdleTimeoutTicks() > 0) {
+                if (idleAFKProvider == null) {
+                    idleAFKProvider = new IdleAFKProvider(sleepVote, config.getIdleTimeoutTicks());
+                    afkManager.addProvider(idleAFKProvider);
+                } else {
+                    idleAFKProvider.setTimeoutTicks(config.getIdleTimeoutTicks());
+                }
             } else {
-                logger.warn("Nucleus not detected. Some requested functionality may be missing");
+                if (idleAFKProvider != null) {
+                    afkManager.removeProvider(idleAFKProvider);
+                    idleAFKProvider = null;
+                }
+                logger.warn("Nucleus not detected and \"idle_timeout_ticks\" is 0. AFK players will not be ignored");
             }
+        } else {
+            afkManager.removeProviders(NucleusAFKProvider.class);
+            afkManager.removeProviders(IdleAFKProvider.class);
+            idleAFKProvider = null;
         }
 
-        uuidsvWorldDataMap = new HashMap<>();
-        uuidsvPlayerDataMap = new HashMap<>();
+        // The ignored game modes, admins and AFK players may have changed, so every player's eligibility is recomputed
 
-        startVotingUpdateLoop();
+        if (Sponge.isServerAvailable()) { // Only the case when reloading; otherwise nobody can be online yet
+            for (Player player : Sponge.getServer().getOnlinePlayers()) {
+                joinAudience(player, player.getWorld().getUniqueId());
+                updateEligibility(player);
+            }
+        }
+        if (Sponge.isServerAvailable()) { // Otherwise once the server has started
+            configureCluster();
+            configureTraceRecorder();
+        }
+
+        dirtyWorlds.addAll(activeWorlds);
     }
 
     private void startVotingUpdateLoop() {
         votingUpdateLoop = Task.builder().execute(() -> {
-            for (World world : Sponge.getServer().getWorlds()) {
-                if (uuidsvWorldDataMap.containsKey(world.getUniqueId())) {
-                    SVWorldData svWorldData = uuidsvWorldDataMap.get(world.getUniqueId());
+            // Worlds are only recounted when something relevant to them has happened (see markDirty). Every so often,
+            // every world with a vote in progress is recounted anyway, in the off chance that players had their sleep
+            // disrupted without triggering an event (i.e. Breaking a bed while someone is in it).
+            // Only the plugin's own state is read here. Anything touching the server is queued for the main thread
+            long startNanos = System.nanoTime();
+            if (++ticksSinceReconcile >= config.getReconcileIntervalTicks()) {
+                ticksSinceReconcile = 0;
+                reconcile();
+            }
 
-                    if (svWorldData.isSkipping() || svWorldData.getSleepingPlayers().isEmpty()) {
-                        continue;
-                    }
+            for (Iterator<UUID> iterator = dirtyWorlds.iterator(); iterator.hasNext(); ) {
+                UUID worldUuid = iterator.next();
+                iterator.remove(); // Removed before updating, so that a world marked dirty again in the meantime is not missed
+                SVWorldData svWorldData = uuidsvWorldDataMap.get(worldUuid);
+                if (svWorldData != null && svWorldData.getWorld() != null) {
+                    updateWorld(svWorldData.getWorld(), svWorldData);
+                }
+            }
+            metrics.recordVotingLoop(System.nanoTime() - startNanos);
+        }).async().intervalTicks(1).submit(sleepVote);
+    }
 
-                    for (UUID uuid : svWorldData.getSleepingPlayers()) { // In the off chance that players had their sleep disrupted without triggering postSleepEvent (i.e. Breaking a bed while someone is in it, teleporting to another world, etc...)
-                        Optional<Player> optUPlayer = Sponge.getServer().getPlayer(uuid);
-                        if (optUPlayer.isPresent()) {
-                            Player player = optUPlayer.get();
-                            if (!isInBed(player) || !player.getWorld().getUniqueId().equals(world.getUniqueId()) || isIgnored(player)) {
-                                svWorldData.getSleepingPlayers().remove(uuid);
-                                Text text = messenger.parseMessage(exitBedMessage,
-                                        svWorldData.getSleepingPlayers().size(),
-                                        getRequiredPlayerCount(world),
-                                        optUPlayer.get().getName(),
-                                        enablePrefix);
-                                messenger.sendWorldMessage(world, text);
-                                messenger.playWorldSound(world, SoundTypes.BLOCK_NOTE_HAT);
-
-                                if (messageLogging) {
-                                    logger.info("[" + world.getName() + "] " + text.toPlain());
-                                }
-                            }
-                        } else {
-                            svWorldData.getSleepingPlayers().remove(uuid);
-                        }
+    private void reconcile() {
+        for (UUID worldUuid : activeWorlds) {
+            // Permissions may change without firing an event, so the eligible players of worlds with a vote in progress are re-indexed as well,
+            // recomputing the eligibility of players whose cached eligibility has expired. The eligible player index is only ever written from the main thread,
+            // which is also the only place where the hitboxes of sleeping players can be checked
+            mainThread.submit(() -> {
+                Sponge.getServer().getWorld(worldUuid).ifPresent(world -> world.getPlayers().forEach(player -> {
+                    joinAudience(player, worldUuid);
+                    updateEligibility(player, worldUuid);
+                    if (isInBed(player)) {
+                        checkInBed(player);
                     }
+                }));
+                dirtyWorlds.add(worldUuid);
+            });
+        }
+    }
 
-                    int numSleeping = svWorldData.getSleepingPlayers().size();
-                    int required = getRequiredPlayerCount(world);
-
-                    WorldProperties worldProperties = world.getProperties();
-                    if (numSleeping >= required) {
-                        svWorldData.setSkipping(true);
-                        Task.builder().execute(() -> { // Add delay so that the night isn't instantly skipped when the last person sleeps
-                            worldProperties.setWorldTime(((int) Math.ceil(worldProperties.getWorldTime() / 24000.0d)) * 24000); // Set time to the next multiple 24000 ticks (equivalent to '/time set 0')
-                            worldProperties.setRaining(false);
-                            worldProperties.setThundering(false);
-
-                            Text text = messenger.parseMessage(wakeupMessage,
-                                    0, 0, "", enablePrefix);
-                            messenger.sendWorldMessage(world, text);
-                            messenger.playWorldSound(world, SoundTypes.ENTITY_PLAYER_LEVELUP);
-
-                            if (messageLogging) {
-                                logger.info("[" + world.getName() + "] " + text.toPlain());
-                            }
-                            svWorldData.getSleepingPlayers().clear();
-                            svWorldData.setSkipping(false);
-                        }).async().delayTicks(10).submit(sleepVote);
-                    }
+    private void updateWorld(World world, SVWorldData svWorldData) {
+        SVConfig config = this.config;
+        if (svWorldData.isSkipping()) {
+            return;
+        }
+        progressDisplay.markChanged(world.getUniqueId());
+        if (svWorldData.getSleepingCount() == 0) {
+            svWorldData.setVoteStartNanos(0);
+            deactivate(world.getUniqueId(), svWorldData);
+            return;
+        }
+        metrics.recordRecount(world.getUniqueId(), svWorldData.getWorldName());
+
+        for (UUID uuid : svWorldData.getSleepingPlayers()) {
+            SVPlayerData svPlayerData = uuidsvPlayerDataMap.get(uuid); // Only online players have data in memory
+            if (svPlayerData != null) {
+                // Players who left the world are no longer in its eligible player index, so their world needs no checking
+                if (!svPlayerData.isInBed() || !svWorldData.isEligible(uuid)) {
+                    svWorldData.getSleepingPlayers().remove(uuid);
+                    publishVoteEvent(VoteAuditLog.EventType.EXIT, world, svWorldData, uuid);
+                    MessageTemplate exitBedMessage = config.getExitBedMessage();
+                    mainThread.submit(() -> Sponge.getServer().getPlayer(uuid)
+                            .ifPresent(player -> broadcastBedMessage(world, exitBedMessage, player.getName())));
                 }
+            } else {
+                svWorldData.getSleepingPlayers().remove(uuid);
+                publishVoteEvent(VoteAuditLog.EventType.EXIT, world, svWorldData, uuid);
             }
-        }).async().intervalTicks(1).submit(sleepVote);
+        }
+
+        SleepVoteCluster cluster = this.cluster;
+        boolean shared = cluster != null && cluster.isShared(world);
+        if (shared) {
+            cluster.publishCounts(world, svWorldData.getSleepingPlayers().size(), svWorldData.getEligibleCount());
+        }
+
+        int numSleeping = svWorldData.getSleepingCount();
+        if (numSleeping == 0) { // Everyone left their bed before the night could be skipped
+            svWorldData.setVoteStartNanos(0);
+            deactivate(world.getUniqueId(), svWorldData);
+            return;
+        }
+        int required = getRequiredPlayerCount(svWorldData);
+
+        if (numSleeping >= required) {
+            if (shared && !cluster.isCoordinator()) {
+                return; // The coordinator decides for the whole cluster
+            }
+            svWorldData.setSkipping(true); // Right away, so that the voting loop doesn't decide to skip again before the main thread gets to it
+            mainThread.submit(() -> {
+                long targetTime = GradualNightSkip.nextMorning(world.getProperties().getWorldTime());
+                if (shared) {
+                    cluster.broadcastSkip(world, targetTime);
+                }
+                startSkip(world, svWorldData, targetTime);
+            });
+        }
+    }
+
+    /**
+     * Must be called from the main thread. The night is skipped by tasks on the main thread as well
+     */
+    private void startSkip(World world, SVWorldData svWorldData, long targetTime) {
+        SVConfig config = this.config;
+        WorldProperties worldProperties = world.getProperties();
+        broadcastCoalescer.flush(world); // Everyone should know who went to bed before the wakeup message
+        svWorldData.setSkipping(true);
+        if (config.getNightSkipDurationTicks() > 0) {
+            Task.builder().execute(new GradualNightSkip(worldProperties,
+                    targetTime,
+                    config.getNightSkipDurationTicks(),
+                    config.getNightSkipMaxStep(),
+                    () -> finishSkip(world, svWorldData)))
+                    .delayTicks(10).intervalTicks(1).submit(sleepVote);
+        } else {
+            Task.builder().execute(() -> { // Add delay so that the night isn't instantly skipped when the last person sleeps
+                worldProperties.setWorldTime(targetTime);
+                finishSkip(world, svWorldData);
+            }).delayTicks(10).submit(sleepVote);
+        }
+    }
+
+    private void finishSkip(World world, SVWorldData svWorldData) {
+        SVConfig config = this.config;
+        WorldProperties worldProperties = world.getProperties();
+        worldProperties.setRaining(false);
+        worldProperties.setThundering(false);
+
+        Text text = messenger.parseMessage(config.getWakeupMessage(), 0, 0, "");
+        messenger.sendWorldMessage(svWorldData, text);
+        messenger.playWorldSound(svWorldData, SoundTypes.ENTITY_PLAYER_LEVELUP);
+
+        publishVoteEvent(VoteAuditLog.EventType.SKIP, world, svWorldData, null);
+        traceRecorder.recordSkip(world);
+        metrics.recordSkip(svWorldData.getVoteStartNanos());
+        svWorldData.getSleepingPlayers().clear();
+        svWorldData.setVoteStartNanos(0);
+        deactivate(world.getUniqueId(), svWorldData);
+        svWorldData.setSkipping(false);
+        progressDisplay.markChanged(world.getUniqueId());
+        publishClusterCounts(world);
+    }
+
+    /**
+     * Drops the world from the index of worlds with a vote in progress, so that the voting loop no longer looks at it
+     */
+    private void deactivate(UUID worldUuid, SVWorldData svWorldData) {
+        activeWorlds.remove(worldUuid);
+        // A player may have been confirmed in bed in the meantime, in which case the world must stay in the index
+        if (svWorldData.getSleepingCount() > 0 && uuidsvWorldDataMap.get(worldUuid) == svWorldData) {
+            activeWorlds.add(worldUuid);
+            dirtyWorlds.add(worldUuid);
+        }
+    }
+
+    /**
+     * Schedules the world to be recounted on the next tick of the voting loop
+     */
+    void markDirty(World world) {
+        markDirty(world.getUniqueId());
+    }
+
+    void markDirty(UUID worldUuid) {
+        if (activeWorlds.contains(worldUuid)) { // Worlds without a vote in progress have nothing to recount
+            dirtyWorlds.add(worldUuid);
+        }
     }
 
     @Listener
     public void onPreSleepingEvent(SleepingEvent.Pre event, @First Player player) {
+        traceRecorder.recordBedEnter(player);
         registerPlayer(player);
+        markDirty(player.getWorld());
+    }
+
+    @Listener
+    public void onPostSleepingEvent(SleepingEvent.Post event, @First Player player) {
+        traceRecorder.recordBedExit(player);
+        getSVPlayerData(player).setInBed(false);
+        markDirty(player.getWorld());
+    }
+
+    @Listener
+    public void onFinishSleepingEvent(SleepingEvent.Finish event, @First Player player) {
+        traceRecorder.recordBedExit(player);
+        getSVPlayerData(player).setInBed(false);
+        markDirty(player.getWorld());
+    }
+
+    @Listener(order = Order.POST)
+    public void onMoveEvent(MoveEntityEvent event, @Getter("getTargetEntity") Player player) {
+        SVPlayerData svPlayerData = uuidsvPlayerDataMap.get(player.getUniqueId());
+        if (svPlayerData != null && svPlayerData.isInBed()
+                && !event.getFromTransform().getPosition().floor().equals(event.getToTransform().getPosition().floor())) {
+            svPlayerData.setInBed(false); // Players can't walk around in a bed
+            traceRecorder.recordBedExit(player);
+            markDirty(player.getWorld());
+        }
+    }
+
+    @Listener(order = Order.POST)
+    public void onTeleportEvent(MoveEntityEvent.Teleport event, @Getter("getTargetEntity") Player player) {
+        getSVPlayerData(player).setInBed(false);
+        World from = event.getFromTransform().getExtent();
+        World to = event.getToTransform().getExtent();
+        traceRecorder.recordTeleport(player, to);
+        if (!from.getUniqueId().equals(to.getUniqueId())) {
+            leaveAudience(player, from.getUniqueId());
+            joinAudience(player, to.getUniqueId());
+            updateEligibility(player, to.getUniqueId());
+        }
+        markDirty(from);
+        markDirty(to);
+    }
+
+    @Listener
+    public void onRespawnEvent(RespawnPlayerEvent event) {
+        // The player is given a new entity on respawn, possibly in another world
+        Player player = event.getTargetEntity();
+        traceRecorder.recordRespawn(event.getOriginalPlayer(), event.getToTransform().getExtent());
+        leaveAudience(event.getOriginalPlayer(), event.getFromTransform().getExtent().getUniqueId());
+        joinAudience(player, event.getToTransform().getExtent().getUniqueId());
+        updateEligibility(player, event.getToTransform().getExtent().getUniqueId());
+    }
+
+    @Listener(order = Order.POST)
+    public void onPlayerAuth(ClientConnectionEvent.Auth event) {
+        // Fired off the main thread, so the player's settings are read from disk here rather than when they join
+        preferenceStore.preload(event.getProfile().getUniqueId());
+    }
+
+    @Listener
+    public void onPlayerJoin(ClientConnectionEvent.Join event, @Getter("getTargetEntity") Player player) {
+        traceRecorder.recordJoin(player, isHidden(player));
+        joinAudience(player, player.getWorld().getUniqueId());
+        updateEligibility(player);
+    }
+
+    @Listener
+    public void onPlayerDisconnect(ClientConnectionEvent.Disconnect event, @Getter("getTargetEntity") Player player) {
+        traceRecorder.recordQuit(player);
+        leaveAudience(player, player.getWorld().getUniqueId());
+        setEligibleWorld(player, null);
+        afkManager.removePlayer(player.getUniqueId());
+        markDirty(player.getWorld());
+
+        // Only the data of online players is kept in memory. Their settings live on in the preference store
+        SVPlayerData svPlayerData = uuidsvPlayerDataMap.remove(player.getUniqueId());
+        if (svPlayerData != null) {
+            bedEntryScheduler.cancel(svPlayerData.getBedEntryHandle());
+        }
+    }
+
+    @Listener
+    public void onWorldUnload(UnloadWorldEvent event) {
+        // Nobody can be in an unloaded world, so there is no vote or audience left worth keeping
+        UUID worldUuid = event.getTargetWorld().getUniqueId();
+        activeWorlds.remove(worldUuid);
+        dirtyWorlds.remove(worldUuid);
+        uuidsvWorldDataMap.remove(worldUuid);
+        broadcastCoalescer.discard(worldUuid);
+        progressDisplay.removeWorld(worldUuid);
+    }
+
+    @Listener
+    public void onServerStarted(GameStartedServerEvent event) {
+        configureCluster();
+        configureTraceRecorder();
+    }
+
+    @Listener
+    public void onServerStopping(GameStoppingServerEvent event) {
+        votingUpdateLoop.cancel();
+        if (cluster != null) {
+            cluster.stop();
+            cluster = null;
+        }
+        traceRecorder.stop();
+        preferenceStore.dispose();
+        auditLog.dispose();
+    }
+
+    @Listener
+    public void onGameModeChange(ChangeGameModeEvent.TargetPlayer event, @Getter("getTargetEntity") Player player) {
+        traceRecorder.recordGameMode(player, event.getGameMode());
+        updateEligibilityNextTick(player); // The event fires before the new game mode is applied
+    }
+
+    @Listener
+    public void onValueChange(ChangeDataHolderEvent.ValueChange event) {
+        if (event.getTargetHolder() instanceof Player) {
+            for (ImmutableValue<?> value : event.getEndResult().getSuccessfulData()) {
+                if (value.getKey().equals(Keys.VANISH)) {
+                    traceRecorder.recordVanish((Player) event.getTargetHolder(), (Boolean) value.get());
+                    updateEligibilityNextTick((Player) event.getTargetHolder()); // The event fires before the value is offered
+                    return;
+                }
+            }
+        }
     }
 
     private void registerPlayer(Player player) {
         player.setSleepingIgnored(true); // Turn off vanilla sleeping to prevent a bug where the time advances (or doesn't, if /gamerule doDaylightCycle false, in which case it just kicks players out of bed without doing anything) but the plugin doesn't display the wakeup message.
         SVPlayerData svPlayerData = getSVPlayerData(player);
+        svPlayerData.setInBed(true); // Tentatively, until the hitbox is checked when the bed entry is confirmed
 
-        svPlayerData.getSleepTask().ifPresent(Task::cancel);
-        svPlayerData.setSleepTask(Task.builder().execute(() -> {
-            if (isInBed(player) && !isIgnored(player)) {
-                World world = player.getWorld();
-                SVWorldData svWorldData = getSVWorldData(world);
-                svWorldData.getSleepingPlayers().add(player.getUniqueId());
-
-                Text text = messenger.parseMessage(enterBedMessage,
-                        svWorldData.getSleepingPlayers().size(),
-                        getRequiredPlayerCount(world),
-                        player.getName(),
-                        enablePrefix);
-                messenger.sendWorldMessage(world, text);
-                messenger.playWorldSound(world, SoundTypes.BLOCK_NOTE_HAT);
-
-                if (messageLogging) {
-                    logger.info("[" + world.getName() + "] " + text.toPlain());
-                }
+        bedEntryScheduler.cancel(svPlayerData.getBedEntryHandle());
+        svPlayerData.setBedEntryHandle(bedEntryScheduler.schedule(player, BED_ENTRY_DELAY_TICKS));
+    }
+
+    private void confirmBedEntry(Player player) {
+        if (!player.isOnline()) {
+            return;
+        }
+
+        World world = player.getWorld();
+        SVWorldData svWorldData = getSVWorldData(world);
+        if (checkInBed(player) && svWorldData.isEligible(player.getUniqueId())) {
+            if (svWorldData.getSleepingPlayers().isEmpty()) {
+                svWorldData.setVoteStartNanos(System.nanoTime());
             }
-        }).async().delayTicks(80).submit(sleepVote));
+            svWorldData.getSleepingPlayers().add(player.getUniqueId());
+            activeWorlds.add(world.getUniqueId()); // Only after the player is added, see deactivate
+            publishVoteEvent(VoteAuditLog.EventType.ENTER, world, svWorldData, player.getUniqueId());
+            broadcastBedMessage(world, config.getEnterBedMessage(), player.getName());
+            markDirty(world);
+        }
     }
 
-    private int getRequiredPlayerCount(World world) {
-        Set<Player> players = new HashSet<>(world.getPlayers());
-        players.removeIf(this::isIgnored);
+    private void broadcastBedMessage(World world, MessageTemplate message, String playerName) {
+        int windowTicks = config.getBroadcastWindowTicks();
+        if (windowTicks > 0) {
+            broadcastCoalescer.submit(world, message, playerName, windowTicks);
+        } else {
+            sendBedMessage(world, message, playerName);
+        }
+    }
 
-        int roundingMode = config.getNode("rounding_mode").getInt(2);
-        BigDecimal requiredFromPercentBD = BigDecimal.valueOf(players.size()).multiply(requiredPercentSleeping);
-        int requiredFromPercent;
-        switch(roundingMode) {
-            case 0:
-                requiredFromPercent = requiredFromPercentBD.setScale(0, RoundingMode.HALF_UP).intValue();
+    /**
+     * Sends an enter bed, exit bed or summary message with the current counts of the world
+     */
+    void sendBedMessage(World world, MessageTemplate message, String playerName) {
+        SVWorldData svWorldData = getSVWorldData(world);
+        Text text = messenger.parseMessage(message,
+                svWorldData.getSleepingCount(),
+                getRequiredPlayerCount(svWorldData),
+                playerName);
+        if (config.getProgressDisplayMode() == ProgressDisplay.Mode.NONE) { // Otherwise the progress display takes the place of chat
+            messenger.sendWorldMessage(svWorldData, text);
+        }
+        messenger.playWorldSound(svWorldData, SoundTypes.BLOCK_NOTE_HAT);
+    }
+
+    /**
+     * Records a change to the vote of a world in the audit log, and lets other plugins know about it
+     */
+    private void publishVoteEvent(VoteAuditLog.EventType type, World world, SVWorldData svWorldData, UUID playerUuid) {
+        int sleeping = svWorldData.getSleepingCount();
+        int required = getRequiredPlayerCount(svWorldData);
+        if (config.isMessageLoggingEnabled()) {
+            auditLog.record(type, world.getUniqueId(), playerUuid, sleeping, required);
+        }
+
+        Cause cause = Cause.of(EventContext.empty(), sleepVote);
+        Event event;
+        switch (type) {
+            case ENTER:
+                event = new VoteChangeEvent(cause, world, playerUuid, VoteChangeEvent.Type.ENTER_BED, sleeping, required);
                 break;
-            case 1:
-                requiredFromPercent = requiredFromPercentBD.setScale(0, RoundingMode.FLOOR).intValue();
+            case EXIT:
+                event = new VoteChangeEvent(cause, world, playerUuid, VoteChangeEvent.Type.EXIT_BED, sleeping, required);
                 break;
-            case 2:
             default:
-                requiredFromPercent = requiredFromPercentBD.setScale(0, RoundingMode.CEILING).intValue();
+                event = new NightSkipEvent(cause, world, sleeping, required);
                 break;
         }
+        // The voting loop is asynchronous, but listeners of other plugins expect to be on the main thread
+        mainThread.execute(() -> Sponge.getEventManager().post(event));
+    }
 
-        int required;
-        if (requiredNumberSleeping <= 0) {
-            required = requiredFromPercent;
-        } else {
-            // Cap the required number of players sleeping at the current player count
-            int realRequiredNumberSleeping = Math.min(players.size(), requiredNumberSleeping);
+    int getRequiredPlayerCount(SVWorldData svWorldData) {
+        return config.getRequirementPolicy().getRequired(svWorldData.getTotalEligibleCount());
+    }
 
-            boolean useHigherRequirementType = config.getNode("use_higher_requirement_type").getBoolean(false);
-            if(useHigherRequirementType) {
-                required = Math.max(requiredFromPercent, realRequiredNumberSleeping);
-            }
-            else {
-                required = Math.min(requiredFromPercent, realRequiredNumberSleeping);
-            }
-        }
+    /**
+     * @return the cached in-bed state of the player, kept up to date by sleeping, movement and teleport events
+     */
+    boolean isInBed(Player player) {
+        return getSVPlayerData(player).isInBed();
+    }
 
-        return Math.max(required, 1);
+    /**
+     * Checks whether the player is in bed by looking at their hitbox, and updates the cached in-bed state with the result.
+     * Only used when a player is about to be counted as sleeping and by the reconciler, never on every tick
+     */
+    private boolean checkInBed(Player player) {
+        boolean inBed = readInBed(player);
+        getSVPlayerData(player).setInBed(inBed);
+        return inBed;
     }
 
-    boolean isInBed(Player player) {
+    static boolean readInBed(Player player) {
         // IS_SLEEPING key still doesn't work. (as of May 6, 2020)
         // return player.get(Keys.IS_SLEEPING).get();
 
@@ -246,45 +561,242 @@ public class SleepVoteManager {
     }
 
     private SVPlayerData getSVPlayerData(Player player) {
-        UUID uuid = player.getUniqueId();
-        uuidsvPlayerDataMap.putIfAbsent(uuid, new SVPlayerData());
-        return uuidsvPlayerDataMap.get(uuid);
+        return uuidsvPlayerDataMap.computeIfAbsent(player.getUniqueId(), this::loadPlayerData);
+    }
+
+    /**
+     * The settings of a player are normally read when they authenticate. If they weren't, they are read in the
+     * background, and the defaults apply until then
+     */
+    private SVPlayerData loadPlayerData(UUID playerUuid) {
+        SVPlayerData svPlayerData = preferenceStore.takePreloaded(playerUuid);
+        if (svPlayerData == null) {
+            svPlayerData = new SVPlayerData(false, false);
+            preferenceStore.loadLater(playerUuid, loaded -> mainThread.submit(() -> applyLoadedSettings(playerUuid, loaded)));
+        }
+        return svPlayerData;
+    }
+
+    private void applyLoadedSettings(UUID playerUuid, SVPlayerData loaded) {
+        SVPlayerData svPlayerData = uuidsvPlayerDataMap.get(playerUuid);
+        if (svPlayerData == null || preferenceStore.hasPendingChanges(playerUuid)) {
+            return; // Offline again, or they changed their settings in the meantime
+        }
+        svPlayerData.setMute(loaded.isMute());
+        svPlayerData.setHidden(loaded.isHidden());
+        Sponge.getServer().getPlayer(playerUuid).ifPresent(player -> {
+            joinAudience(player, player.getWorld().getUniqueId());
+            updateEligibility(player);
+        });
+    }
+
+    SVWorldData getSVWorldData(World world) {
+        return uuidsvWorldDataMap.computeIfAbsent(world.getUniqueId(), uuid -> new SVWorldData(world));
+    }
+
+    /**
+     * @return the data of the world, or null if nothing has happened in it yet
+     */
+    SVWorldData findSVWorldData(UUID worldUuid) {
+        return uuidsvWorldDataMap.get(worldUuid);
+    }
+
+    private SVWorldData getSVWorldData(UUID worldUuid) {
+        return uuidsvWorldDataMap.computeIfAbsent(worldUuid, uuid -> new SVWorldData(Sponge.getServer().getWorld(uuid).orElse(null)));
+    }
+
+    /**
+     * Recomputes whether the player counts towards the sleep requirement of their world,
+     * and moves them in or out of the eligible player index of that world accordingly.
+     * Called whenever something that affects {@link #isIgnored(Player)} changes.
+     * Must be called from the main thread, which is the only writer of the index
+     */
+    void updateEligibility(Player player) {
+        refreshIgnored(player);
+        updateEligibility(player, player.getWorld().getUniqueId());
+    }
+
+    /**
+     * Moves the player in or out of the eligible player index of the given world, according to their cached eligibility
+     */
+    private void updateEligibility(Player player, UUID worldUuid) {
+        setEligibleWorld(player, isIgnored(player) ? null : worldUuid);
+    }
+
+    private void updateEligibilityNextTick(Player player) {
+        Task.builder().execute(() -> {
+            if (player.isOnline()) {
+                updateEligibility(player);
+            }
+        }).submit(sleepVote);
+    }
+
+    private void joinAudience(Player player, UUID worldUuid) {
+        SVWorldData svWorldData = getSVWorldData(worldUuid);
+        svWorldData.getAudience().add(player);
+        if (isMute(player)) {
+            svWorldData.getSoundAudience().remove(player.getUniqueId());
+        } else {
+            svWorldData.getSoundAudience().add(player);
+        }
+        progressDisplay.addViewer(worldUuid, player);
     }
 
-    private SVWorldData getSVWorldData(World world) {
-        UUID uuid = world.getUniqueId();
-        uuidsvWorldDataMap.putIfAbsent(uuid, new SVWorldData());
-        return uuidsvWorldDataMap.get(uuid);
+    private void leaveAudience(Player player, UUID worldUuid) {
+        SVWorldData svWorldData = uuidsvWorldDataMap.get(worldUuid);
+        if (svWorldData != null) {
+            svWorldData.getAudience().remove(player.getUniqueId());
+            svWorldData.getSoundAudience().remove(player.getUniqueId());
+        }
+        progressDisplay.removeViewer(worldUuid, player);
+    }
+
+    private void setEligibleWorld(Player player, UUID worldUuid) {
+        SVPlayerData svPlayerData = getSVPlayerData(player);
+        Optional<UUID> eligibleWorld = svPlayerData.getEligibleWorld();
+        if (eligibleWorld.isPresent() && eligibleWorld.get().equals(worldUuid)) {
+            return;
+        }
+
+        eligibleWorld.ifPresent(oldWorldUuid -> {
+            SVWorldData oldSVWorldData = uuidsvWorldDataMap.get(oldWorldUuid);
+            if (oldSVWorldData != null) {
+                oldSVWorldData.removeEligiblePlayer(player.getUniqueId());
+            }
+            markDirty(oldWorldUuid);
+            publishClusterCounts(oldWorldUuid);
+        });
+
+        if (worldUuid != null) {
+            getSVWorldData(worldUuid).addEligiblePlayer(player.getUniqueId());
+            markDirty(worldUuid);
+            publishClusterCounts(worldUuid);
+        }
+
+        svPlayerData.setEligibleWorld(worldUuid);
+    }
+
+    private void publishClusterCounts(UUID worldUuid) {
+        if (cluster != null) {
+            Sponge.getServer().getWorld(worldUuid).ifPresent(this::publishClusterCounts);
+        }
+    }
+
+    /**
+     * Lets the other servers of the cluster know the counts of this server for the world, if it is shared and they have changed
+     */
+    void publishClusterCounts(World world) {
+        SleepVoteCluster cluster = this.cluster;
+        if (cluster != null && cluster.isShared(world)) {
+            SVWorldData svWorldData = uuidsvWorldDataMap.get(world.getUniqueId());
+            cluster.publishCounts(world, // Players of a world being skipped are about to wake up, so they no longer count
+                    svWorldData == null || svWorldData.isSkipping() ? 0 : svWorldData.getSleepingPlayers().size(),
+                    svWorldData == null ? 0 : svWorldData.getEligibleCount());
+        }
+    }
+
+    /**
+     * Called by the cluster when the counts of the other servers for the world have changed
+     */
+    void setRemoteCounts(World world, int sleepingCount, int eligibleCount) {
+        UUID worldUuid = world.getUniqueId();
+        getSVWorldData(worldUuid).setRemoteCounts(sleepingCount, eligibleCount);
+        if (sleepingCount > 0) {
+            activeWorlds.add(worldUuid);
+        }
+        markDirty(worldUuid);
+    }
+
+    /**
+     * Called by the cluster when the coordinator has decided to skip the night of the world
+     */
+    void startClusterSkip(World world, long targetTime) {
+        SVWorldData svWorldData = getSVWorldData(world);
+        if (!svWorldData.isSkipping()) {
+            startSkip(world, svWorldData, targetTime);
+        }
+    }
+
+    /**
+     * (Re)starts cluster mode according to the current configuration. Transports of other plugins are looked up
+     * as a service, so this is only done once the server has started
+     */
+    private void configureCluster() {
+        if (cluster != null) {
+            cluster.stop();
+            cluster = null;
+        }
+
+        SVConfig config = this.config;
+        if (!config.isClusterEnabled()) {
+            return;
+        }
+
+        Optional<ClusterTransport> providedTransport = Sponge.getServiceManager().provide(ClusterTransport.class);
+        ClusterTransport transport = providedTransport.orElseGet(() ->
+                new UdpClusterTransport(logger, config.getClusterAddress(), config.getClusterPeers()));
+        cluster = new SleepVoteCluster(sleepVote, this, transport, config.getClusterNodeId(), config.isClusterCoordinator(), config.getClusterWorlds());
+        cluster.start();
+        logger.info("Joined the cluster as \"" + config.getClusterNodeId() + "\"" + (config.isClusterCoordinator() ? " (coordinator)" : "")
+                + (providedTransport.isPresent() ? "" : ", listening on " + config.getClusterAddress()));
+    }
+
+    /**
+     * Starts or stops recording events according to the current configuration. Like the cluster, this is only done once the server has started
+     */
+    private void configureTraceRecorder() {
+        if (config.isTraceRecordingEnabled()) {
+            traceRecorder.start(config.getTraceMaxMegabytes());
+        } else {
+            traceRecorder.stop();
+        }
     }
 
     boolean isInIgnoredGameMode(Player player) {
+        SVConfig config = this.config;
         Optional<GameMode> optionalGameMode = player.getGameModeData().get(Keys.GAME_MODE);
         if (optionalGameMode.isPresent()) {
             GameMode gameMode = optionalGameMode.get();
-            return (gameMode.equals(GameModes.SURVIVAL) && ignoredGameModes[0]) ||
-                    (gameMode.equals(GameModes.CREATIVE) && ignoredGameModes[1]) ||
-                    (gameMode.equals(GameModes.ADVENTURE) && ignoredGameModes[2]) ||
-                    (gameMode.equals(GameModes.SPECTATOR) && ignoredGameModes[3]);
+            return (gameMode.equals(GameModes.SURVIVAL) && config.isGameModeIgnored(0)) ||
+                    (gameMode.equals(GameModes.CREATIVE) && config.isGameModeIgnored(1)) ||
+                    (gameMode.equals(GameModes.ADVENTURE) && config.isGameModeIgnored(2)) ||
+                    (gameMode.equals(GameModes.SPECTATOR) && config.isGameModeIgnored(3));
         }
         return true;
     }
 
     void ignorePlayer(Player player) {
-        getSVPlayerData(player).setHidden(true);
+        SVPlayerData svPlayerData = getSVPlayerData(player);
+        svPlayerData.setHidden(true);
+        preferenceStore.storePlayer(player.getUniqueId(), svPlayerData);
+        traceRecorder.recordHide(player, true);
+        updateEligibility(player);
     }
 
+    /**
+     * @return the cached result of {@link #refreshIgnored(Player)}, which is recomputed if it is older than "eligibility_ttl_ticks"
+     */
     boolean isIgnored(Player player) {
-        boolean isAFK = false;
-        if (afkManager != null) {
-            isAFK = afkManager.isAFK(player.getUniqueId());
+        SVPlayerData svPlayerData = getSVPlayerData(player);
+        if (svPlayerData.getIgnoredExpiryTick() > Sponge.getServer().getRunningTimeTicks()) {
+            return svPlayerData.isIgnored();
         }
+        return refreshIgnored(player);
+    }
+
+    boolean refreshIgnored(Player player) {
+        boolean isAFK = config.areAfkPlayersIgnored() && afkManager.isAFK(player.getUniqueId());
 
         SVPlayerData svPlayerData = getSVPlayerData(player);
-        return (ignoreAdmins && player.hasPermission("sleepvote.hidden"))
+        boolean ignored = (config.areAdminsIgnored() && player.hasPermission("sleepvote.hidden"))
                 || isInIgnoredGameMode(player)
                 || svPlayerData.isHidden()
                 || isAFK
                 || player.get(Keys.VANISH).get();
+
+        int ttl = config.getEligibilityTtlTicks();
+        svPlayerData.setIgnored(ignored, ttl > 0 ? Sponge.getServer().getRunningTimeTicks() + ttl : Long.MAX_VALUE);
+        return ignored;
     }
 
     boolean isHidden(Player player) {
@@ -292,15 +804,25 @@ public class SleepVoteManager {
     }
 
     void unignorePlayer(Player player) {
-        getSVPlayerData(player).setHidden(false);
+        SVPlayerData svPlayerData = getSVPlayerData(player);
+        svPlayerData.setHidden(false);
+        preferenceStore.storePlayer(player.getUniqueId(), svPlayerData);
+        traceRecorder.recordHide(player, false);
+        updateEligibility(player);
     }
 
     void mutePlayer(Player player) {
-        getSVPlayerData(player).setMute(true);
+        SVPlayerData svPlayerData = getSVPlayerData(player);
+        svPlayerData.setMute(true);
+        preferenceStore.storePlayer(player.getUniqueId(), svPlayerData);
+        getSVWorldData(player.getWorld()).getSoundAudience().remove(player.getUniqueId());
     }
 
     void unmutePlayer(Player player) {
-        getSVPlayerData(player).setMute(false);
+        SVPlayerData svPlayerData = getSVPlayerData(player);
+        svPlayerData.setMute(false);
+        preferenceStore.storePlayer(player.getUniqueId(), svPlayerData);
+        getSVWorldData(player.getWorld()).getSoundAudience().add(player);
     }
 
     boolean isMute(Player player) {
@@ -308,17 +830,30 @@ public class SleepVoteManager {
     }
 
     boolean areAdminsIgnored() {
-        return ignoreAdmins;
+        return config.areAdminsIgnored();
+    }
+
+    AFKManager getAFKManager() {
+        return afkManager;
+    }
+
+    EventTraceRecorder getTraceRecorder() {
+        return traceRecorder;
+    }
+
+    MainThreadQueue getMainThreadQueue() {
+        return mainThread;
+    }
+
+    SleepVoteMetrics getMetrics() {
+        return metrics;
     }
 
     Messenger getMessenger() {
         return messenger;
     }
 
-    void dispose() {
-        if (afkManager != null) {
-            Sponge.getEventManager().unregisterListeners(afkManager);
-        }
-        votingUpdateLoop.cancel();
+    SVConfig getConfig() {
+        return config;
     }
 }
@@ -0,0 +1,263 @@
+package io.github.icohedron.sleepvote;
+
+import org.slf4j.Logger;
+import org.spongepowered.api.scheduler.Task;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms of what the plugin does and what it costs. Recording only touches {@link LongAdder}s,
+ * so it is cheap and safe from any thread. The values can be viewed with '/sleepvote stats', and are periodically
+ * written to a file in the Prometheus text format.
+ */
+class SleepVoteMetrics {
+
+    private static final String FILE_NAME = "metrics.prom";
+
+    private final SleepVote sleepVote;
+    private final Logger logger;
+    private final Path filePath;
+
+    private final Histogram votingLoopNanos;
+    private final Histogram timeToSkipNanos;
+    private final LongAdder messagesSent;
+    private final LongAdder soundsPlayed;
+    private final LongAdder nightsSkipped;
+    private final Map<UUID, WorldRecounts> recounts;
+
+    private Task fileTask;
+    private int fileIntervalTicks;
+
+    SleepVoteMetrics(SleepVote sleepVote) {
+        this.sleepVote = sleepVote;
+        logger = sleepVote.getLogger();
+        filePath = sleepVote.getConfigurationDirectory().resolve(FILE_NAME);
+
+        // 1 microsecond to ~1 second
+        votingLoopNanos = new Histogram(1_000L, 21);
+        // 1 second to ~17 minutes
+        timeToSkipNanos = new Histogram(1_000_000_000L, 11);
+        messagesSent = new LongAdder();
+        soundsPlayed = new LongAdder();
+        nightsSkipped = new LongAdder();
+        recounts = new ConcurrentHashMap<>();
+    }
+
+    void recordVotingLoop(long nanos) {
+        votingLoopNanos.record(nanos);
+    }
+
+    /**
+     * Called from the voting loop, so the name is passed in rather than read from the world there
+     */
+    void recordRecount(UUID worldUuid, String worldName) {
+        recounts.computeIfAbsent(worldUuid, uuid -> new WorldRecounts(worldName)).count.increment();
+    }
+
+    void recordMessagesSent(int count) {
+        messagesSent.add(count);
+    }
+
+    void recordSoundsPlayed(int count) {
+        soundsPlayed.add(count);
+    }
+
+    /**
+     * @param voteStartNanos when the first player of the vote started sleeping, as given by {@link System#nanoTime()}, or 0 if unknown
+     */
+    void recordSkip(long voteStartNanos) {
+        nightsSkipped.increment();
+        if (voteStartNanos != 0) {
+            timeToSkipNanos.record(System.nanoTime() - voteStartNanos);
+        }
+    }
+
+    /**
+     * @return a human readable summary, one entry per line
+     */
+    List<String> summarize() {
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format(Locale.ROOT, "Voting loop: %d runs, mean %.1f µs, p99 %s %.1f µs",
+                votingLoopNanos.getCount(), votingLoopNanos.getMean() / 1_000.0d,
+                votingLoopNanos.isAboveBounds(0.99) ? ">" : "<", votingLoopNanos.getPercentileBound(0.99) / 1_000.0d));
+
+        long totalRecounts = 0;
+        for (WorldRecounts worldRecounts : recounts.values()) {
+            totalRecounts += worldRecounts.count.sum();
+        }
+        lines.add("Recounts: " + totalRecounts + " in " + recounts.size() + " worlds");
+        recounts.values().stream()
+                .sorted((a, b) -> Long.compare(b.count.sum(), a.count.sum()))
+                .limit(5)
+                .forEach(worldRecounts -> lines.add("  " + worldRecounts.worldName + ": " + worldRecounts.count.sum()));
+
+        lines.add("Messages sent: " + messagesSent.sum() + " | Sounds played: " + soundsPlayed.sum() + " | Nights skipped: " + nightsSkipped.sum());
+        lines.add(String.format(Locale.ROOT, "First sleeper to skip: mean %.1f s, p99 %s %.0f s",
+                timeToSkipNanos.getMean() / 1_000_000_000.0d,
+                timeToSkipNanos.isAboveBounds(0.99) ? ">" : "<", timeToSkipNanos.getPercentileBound(0.99) / 1_000_000_000.0d));
+        return lines;
+    }
+
+    /**
+     * Starts, restarts or stops writing the metrics file
+     *
+     * @param intervalTicks how often to write the file, or 0 to not write it at all
+     */
+    void setFileInterval(int intervalTicks) {
+        if (intervalTicks == fileIntervalTicks) {
+            return;
+        }
+        fileIntervalTicks = intervalTicks;
+
+        if (fileTask != null) {
+            fileTask.cancel();
+            fileTask = null;
+        }
+        if (intervalTicks > 0) {
+            fileTask = Task.builder().execute(this::writeFile).async().intervalTicks(intervalTicks).submit(sleepVote);
+        }
+    }
+
+    private void writeFile() {
+        Path temporaryPath = filePath.resolveSibling(FILE_NAME + ".tmp");
+        try {
+            Files.createDirectories(filePath.getParent());
+            try (BufferedWriter writer = Files.newBufferedWriter(temporaryPath, StandardCharsets.UTF_8)) {
+                votingLoopNanos.writePrometheus(writer, "sleepvote_voting_loop_seconds", "Time taken by one run of the voting loop");
+                timeToSkipNanos.writePrometheus(writer, "sleepvote_time_to_skip_seconds", "Time from the first player sleeping to the night being skipped");
+
+                writer.write("# HELP sleepvote_recounts_total Number of times the vote of a world was recounted\n");
+                writer.write("# TYPE sleepvote_recounts_total counter\n");
+                for (WorldRecounts worldRecounts : recounts.values()) {
+                    writer.write("sleepvote_recounts_total{world=\"" + worldRecounts.worldName.replace("\\", "\\\\").replace("\"", "\\\"") + "\"} " + worldRecounts.count.sum() + "\n");
+                }
+
+                writeCounter(writer, "sleepvote_messages_sent_total", "Number of chat messages sent to players", messagesSent.sum());
+                writeCounter(writer, "sleepvote_sounds_played_total", "Number of sounds played to players", soundsPlayed.sum());
+                writeCounter(writer, "sleepvote_nights_skipped_total", "Number of nights skipped", nightsSkipped.sum());
+            }
+            Files.move(temporaryPath, filePath, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            logger.error("An error occurred while attempting to write the metrics file!");
+            logger.error(e.getMessage());
+        }
+    }
+
+    private static void writeCounter(BufferedWriter writer, String name, String help, long value) throws IOException {
+        writer.write("# HELP " + name + " " + help + "\n");
+        writer.write("# TYPE " + name + " counter\n");
+        writer.write(name + " " + value + "\n");
+    }
+
+    private static final class WorldRecounts {
+
+        private final String worldName;
+        private final LongAdder count;
+
+        private WorldRecounts(String worldName) {
+            this.worldName = worldName;
+            this.count = new LongAdder();
+        }
+    }
+
+    /**
+     * A histogram of nanosecond durations with buckets growing by powers of two
+     */
+    static final class Histogram {
+
+        private final long[] upperBounds;
+        private final LongAdder[] buckets; // The last bucket holds everything above the largest bound
+        private final LongAdder sum;
+        private final LongAdder count;
+
+        Histogram(long smallestBound, int boundCount) {
+            upperBounds = new long[boundCount];
+            for (int i = 0; i < boundCount; i++) {
+                upperBounds[i] = smallestBound << i;
+            }
+            buckets = new LongAdder[boundCount + 1];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+            sum = new LongAdder();
+            count = new LongAdder();
+        }
+
+        void record(long value) {
+            int bucket = 0;
+            while (bucket < upperBounds.length && value > upperBounds[bucket]) {
+                bucket++;
+            }
+            buckets[bucket].increment();
+            sum.add(value);
+            count.increment();
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+
+        double getMean() {
+            long count = this.count.sum();
+            return count == 0 ? 0 : (double) sum.sum() / count;
+        }
+
+        /**
+         * @return the upper bound of the bucket the given percentile falls in, the largest bound if it is above every
+         * bound (see {@link #isAboveBounds(double)}), or 0 if nothing has been recorded
+         */
+        long getPercentileBound(double percentile) {
+            int bucket = percentileBucket(percentile);
+            return bucket < 0 ? 0 : upperBounds[Math.min(bucket, upperBounds.length - 1)];
+        }
+
+        boolean isAboveBounds(double percentile) {
+            return percentileBucket(percentile) == upperBounds.length;
+        }
+
+        /**
+         * @return the bucket the given percentile falls in, or -1 if nothing has been recorded
+         */
+        private int percentileBucket(double percentile) {
+            long count = this.count.sum();
+            if (count == 0) {
+                return -1;
+            }
+            long target = Math.max((long) Math.ceil(count * percentile), 1);
+            long cumulative = 0;
+            for (int i = 0; i < upperBounds.length; i++) {
+                cumulative += buckets[i].sum();
+                if (cumulative >= target) {
+                    return i;
+                }
+            }
+            return upperBounds.length;
+        }
+
+        void writePrometheus(BufferedWriter writer, String name, String help) throws IOException {
+            writer.write("# HELP " + name + " " + help + "\n");
+            writer.write("# TYPE " + name + " histogram\n");
+            long cumulative = 0;
+            for (int i = 0; i < upperBounds.length; i++) {
+                cumulative += buckets[i].sum();
+                writer.write(String.format(Locale.ROOT, "%s_bucket{le=\"%.9f\"} %d\n", name, upperBounds[i] / 1_000_000_000.0d, cumulative));
+            }
+            cumulative += buckets[upperBounds.length].sum();
+            writer.write(name + "_bucket{le=\"+Inf\"} " + cumulative + "\n");
+            writer.write(String.format(Locale.ROOT, "%s_sum %.9f\n", name, sum.sum() / 1_000_000_000.0d));
+            writer.write(name + "_count " + count.sum() + "\n");
+        }
+    }
+}
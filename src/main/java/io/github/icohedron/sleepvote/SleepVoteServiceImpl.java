@@ -0,0 +1,43 @@
+package io.github.icohedron.sleepvote;
+
+import io.github.icohedron.sleepvote.api.AFKProvider;
+import io.github.icohedron.sleepvote.api.SleepVoteService;
+
+import java.util.UUID;
+
+class SleepVoteServiceImpl implements SleepVoteService {
+
+    private final SleepVoteManager sleepVoteManager;
+
+    SleepVoteServiceImpl(SleepVoteManager sleepVoteManager) {
+        this.sleepVoteManager = sleepVoteManager;
+    }
+
+    @Override
+    public int getSleepingCount(UUID worldUuid) {
+        SVWorldData svWorldData = sleepVoteManager.findSVWorldData(worldUuid);
+        return svWorldData == null ? 0 : svWorldData.getSleepingCount();
+    }
+
+    @Override
+    public int getRequiredCount(UUID worldUuid) {
+        SVWorldData svWorldData = sleepVoteManager.findSVWorldData(worldUuid);
+        return svWorldData == null ? sleepVoteManager.getConfig().getRequirementPolicy().getRequired(0) : sleepVoteManager.getRequiredPlayerCount(svWorldData);
+    }
+
+    @Override
+    public boolean isSkipping(UUID worldUuid) {
+        SVWorldData svWorldData = sleepVoteManager.findSVWorldData(worldUuid);
+        return svWorldData != null && svWorldData.isSkipping();
+    }
+
+    @Override
+    public void registerAFKProvider(AFKProvider provider) {
+        sleepVoteManager.getAFKManager().addProvider(provider);
+    }
+
+    @Override
+    public void unregisterAFKProvider(AFKProvider provider) {
+        sleepVoteManager.getAFKManager().removeProvider(provider);
+    }
+}
@@ -0,0 +1,99 @@
+package io.github.icohedron.sleepvote;
+
+import io.github.icohedron.sleepvote.api.ClusterTransport;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * The cluster transport used when no other plugin provides one. Every message is sent as a single UDP datagram to each
+ * configured peer, without any retries: lost or reordered datagrams are made up for by the cluster protocol itself.
+ * Several servers on one machine can be clustered by having them listen on different loopback ports.
+ * <p>
+ * Datagrams are only accepted from the configured peers, i.e. the address and port a peer listens on, which it also
+ * sends from.
+ */
+class UdpClusterTransport implements ClusterTransport {
+
+    private final Logger logger;
+    private final InetSocketAddress bindAddress;
+    private final List<InetSocketAddress> peers;
+    private final Set<InetSocketAddress> peerSet; // For checking where datagrams came from
+
+    private DatagramSocket socket;
+    private Thread receiveThread;
+
+    UdpClusterTransport(Logger logger, InetSocketAddress bindAddress, List<InetSocketAddress> peers) {
+        this.logger = logger;
+        this.bindAddress = bindAddress;
+        this.peers = peers;
+        peerSet = new HashSet<>(peers);
+    }
+
+    @Override
+    public void start(Consumer<byte[]> receiver) {
+        try {
+            socket = new DatagramSocket(bindAddress);
+        } catch (SocketException e) {
+            logger.error("Unable to listen for cluster messages on " + bindAddress + "!");
+            logger.error(e.getMessage());
+            return;
+        }
+
+        DatagramSocket socket = this.socket;
+        receiveThread = new Thread(() -> {
+            byte[] buffer = new byte[SleepVoteCluster.MAX_MESSAGE_BYTES];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            while (!socket.isClosed()) {
+                try {
+                    packet.setLength(buffer.length);
+                    socket.receive(packet);
+                    if (!peerSet.contains(packet.getSocketAddress())) {
+                        continue; // Not from a server of the cluster
+                    }
+                    receiver.accept(Arrays.copyOf(buffer, packet.getLength()));
+                } catch (IOException e) {
+                    if (!socket.isClosed()) {
+                        logger.error("An error occurred while receiving a cluster message!");
+                        logger.error(e.getMessage());
+                    }
+                }
+            }
+        }, "SleepVote Cluster Receiver");
+        receiveThread.setDaemon(true);
+        receiveThread.start();
+    }
+
+    @Override
+    public void send(byte[] message) {
+        DatagramSocket socket = this.socket;
+        if (socket == null) {
+            return;
+        }
+        for (InetSocketAddress peer : peers) {
+            try {
+                socket.send(new DatagramPacket(message, message.length, peer));
+            } catch (IOException e) {
+                logger.error("An error occurred while sending a cluster message to " + peer + "!");
+                logger.error(e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (socket != null) {
+            socket.close();
+            socket = null;
+        }
+    }
+}
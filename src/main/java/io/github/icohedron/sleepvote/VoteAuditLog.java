@@ -0,0 +1,245 @@
+package io.github.icohedron.sleepvote;
+
+import org.slf4j.Logger;
+import org.spongepowered.api.Sponge;
+import org.spongepowered.api.entity.living.player.Player;
+import org.spongepowered.api.scheduler.Task;
+import org.spongepowered.api.world.World;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records vote events (entering and leaving beds, skipped nights) to "audit.log" in the configuration directory,
+ * one line per event: "timestamp,world uuid,player uuid,event,sleeping,required".
+ * <p>
+ * Events are claimed and written into a bounded lock-free ring buffer of primitive arrays, so recording them never
+ * blocks or allocates. A background task drains the buffer once per second, appends the batch to the file, and
+ * optionally echoes it to the console. The file is rolled over once it grows past the configured size.
+ * If the buffer is ever full, events are dropped and counted rather than stalling the server.
+ */
+class VoteAuditLog {
+
+    enum EventType {
+        ENTER("entered their bed"),
+        EXIT("left their bed"),
+        SKIP("skipped the night");
+
+        private final String description;
+
+        EventType(String description) {
+            this.description = description;
+        }
+    }
+
+    private static final String FILE_NAME = "audit.log";
+    private static final int KEPT_FILES = 3; // audit.log.1 to audit.log.3
+    static final int CAPACITY = 4096; // Must be a power of two
+    private static final int MASK = CAPACITY - 1;
+    private static final int FLUSH_INTERVAL_TICKS = 20;
+    private static final EventType[] EVENT_TYPES = EventType.values();
+
+    private final Logger logger;
+    private final MainThreadQueue mainThread;
+    private final Path filePath;
+
+    // Slot storage. A slot is readable once published[slot] holds the sequence number it was claimed with
+    private final AtomicLongArray published;
+    private final long[] timestamps;
+    private final long[] worldMostBits;
+    private final long[] worldLeastBits;
+    private final long[] playerMostBits;
+    private final long[] playerLeastBits;
+    private final byte[] types;
+    private final int[] sleeping;
+    private final int[] required;
+
+    private final AtomicLong tail; // Next sequence number to claim
+    private final AtomicLong head; // Next sequence number to drain. Only advanced by the writer
+    private final LongAdder dropped;
+
+    private final StringBuilder line; // Only used by the writer
+    private BufferedWriter writer;
+    private long fileSize;
+
+    private volatile boolean consoleEcho;
+    private volatile long maxFileBytes;
+
+    private Task flushTask; // Null if there is no background task
+
+    VoteAuditLog(SleepVote sleepVote, MainThreadQueue mainThread) {
+        this(sleepVote.getLogger(), mainThread, sleepVote.getConfigurationDirectory().resolve(FILE_NAME));
+        flushTask = Task.builder().execute(this::flush).async().intervalTicks(FLUSH_INTERVAL_TICKS).submit(sleepVote);
+    }
+
+    /**
+     * Without the background task, so {@link #flush()} is left to the caller
+     */
+    VoteAuditLog(Logger logger, MainThreadQueue mainThread, Path filePath) {
+        this.logger = logger;
+        this.mainThread = mainThread;
+        this.filePath = filePath;
+
+        published = new AtomicLongArray(CAPACITY);
+        for (int i = 0; i < CAPACITY; i++) {
+            published.set(i, i - CAPACITY); // Not yet published for the first lap
+        }
+        timestamps = new long[CAPACITY];
+        worldMostBits = new long[CAPACITY];
+        worldLeastBits = new long[CAPACITY];
+        playerMostBits = new long[CAPACITY];
+        playerLeastBits = new long[CAPACITY];
+        types = new byte[CAPACITY];
+        sleeping = new int[CAPACITY];
+        required = new int[CAPACITY];
+
+        tail = new AtomicLong();
+        head = new AtomicLong();
+        dropped = new LongAdder();
+        line = new StringBuilder(128);
+    }
+
+    void configure(boolean consoleEcho, int maxFileKilobytes) {
+        this.consoleEcho = consoleEcho;
+        this.maxFileBytes = maxFileKilobytes * 1024L;
+    }
+
+    /**
+     * Queues an event. Safe to call from any thread
+     *
+     * @param playerUuid the player who entered or left their bed, or null for events concerning the whole world
+     */
+    void record(EventType type, UUID worldUuid, UUID playerUuid, int sleeping, int required) {
+        long sequence;
+        do {
+            sequence = tail.get();
+            if (sequence - head.get() >= CAPACITY) {
+                dropped.increment();
+                return;
+            }
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+
+        int slot = (int) (sequence & MASK);
+        timestamps[slot] = System.currentTimeMillis();
+        worldMostBits[slot] = worldUuid.getMostSignificantBits();
+        worldLeastBits[slot] = worldUuid.getLeastSignificantBits();
+        playerMostBits[slot] = playerUuid == null ? 0 : playerUuid.getMostSignificantBits();
+        playerLeastBits[slot] = playerUuid == null ? 0 : playerUuid.getLeastSignificantBits();
+        types[slot] = (byte) type.ordinal();
+        this.sleeping[slot] = sleeping;
+        this.required[slot] = required;
+        published.lazySet(slot, sequence); // Makes the writes above visible to the writer
+    }
+
+    /**
+     * Drains the buffer to the file and console. Only ever run by one thread at a time
+     */
+    synchronized void flush() {
+        long sequence = head.get();
+        if (published.get((int) (sequence & MASK)) != sequence && dropped.sum() == 0) {
+            return; // Nothing to do
+        }
+
+        try {
+            for (; published.get((int) (sequence & MASK)) == sequence; sequence++) {
+                int slot = (int) (sequence & MASK);
+                line.setLength(0);
+                line.append(timestamps[slot]).append(',')
+                        .append(new UUID(worldMostBits[slot], worldLeastBits[slot])).append(',')
+                        .append(playerMostBits[slot] == 0 && playerLeastBits[slot] == 0 ? "" : new UUID(playerMostBits[slot], playerLeastBits[slot])).append(',')
+                        .append(EVENT_TYPES[types[slot]].name()).append(',')
+                        .append(sleeping[slot]).append(',')
+                        .append(required[slot]).append('\n');
+                write(line);
+                if (consoleEcho) {
+                    echo(slot);
+                }
+                head.lazySet(sequence + 1); // Frees the slot for producers
+            }
+
+            long droppedCount = dropped.sumThenReset();
+            if (droppedCount > 0) {
+                logger.warn("The vote audit log could not keep up, " + droppedCount + " events were dropped");
+            }
+            if (writer != null) {
+                writer.flush();
+            }
+        } catch (IOException e) {
+            head.set(tail.get()); // Discard the batch rather than let producers fill up the buffer
+            closeWriter();
+            logger.error("An error occurred while attempting to write the vote audit log!");
+            logger.error(e.getMessage());
+        }
+    }
+
+    private void write(CharSequence line) throws IOException {
+        if (writer == null || fileSize + line.length() > maxFileBytes) {
+            openWriter();
+        }
+        writer.append(line);
+        fileSize += line.length(); // The line is plain ASCII
+    }
+
+    private void openWriter() throws IOException {
+        closeWriter();
+        Files.createDirectories(filePath.getParent());
+        if (Files.exists(filePath) && Files.size(filePath) >= maxFileBytes) {
+            for (int i = KEPT_FILES - 1; i >= 1; i--) {
+                Path older = filePath.resolveSibling(FILE_NAME + "." + i);
+                if (Files.exists(older)) {
+                    Files.move(older, filePath.resolveSibling(FILE_NAME + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(filePath, filePath.resolveSibling(FILE_NAME + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        }
+        writer = Files.newBufferedWriter(filePath, StandardCharsets.US_ASCII, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        fileSize = Files.size(filePath);
+    }
+
+    private void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException ignored) {
+            }
+            writer = null;
+        }
+    }
+
+    /**
+     * Names are looked up on the main thread, since the server can't be queried from the flush task
+     */
+    private void echo(int slot) {
+        UUID worldUuid = new UUID(worldMostBits[slot], worldLeastBits[slot]);
+        UUID playerUuid = new UUID(playerMostBits[slot], playerLeastBits[slot]);
+        EventType type = EVENT_TYPES[types[slot]];
+        int sleeping = this.sleeping[slot];
+        int required = this.required[slot];
+        mainThread.execute(() -> {
+            String worldName = Sponge.getServer().getWorld(worldUuid).map(World::getName).orElse(worldUuid.toString());
+            if (type == EventType.SKIP) {
+                logger.info("[" + worldName + "] " + type.description);
+            } else {
+                String playerName = Sponge.getServer().getPlayer(playerUuid).map(Player::getName).orElse(playerUuid.toString());
+                logger.info("[" + worldName + "] " + playerName + " " + type.description + " (" + sleeping + "/" + required + ")");
+            }
+        });
+    }
+
+    void dispose() {
+        if (flushTask != null) {
+            flushTask.cancel();
+        }
+        flush();
+        closeWriter();
+    }
+}
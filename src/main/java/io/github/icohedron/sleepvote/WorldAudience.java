@@ -0,0 +1,50 @@
+package io.github.icohedron.sleepvote;
+
+import org.spongepowered.api.effect.sound.SoundType;
+import org.spongepowered.api.entity.living.player.Player;
+import org.spongepowered.api.text.channel.MessageChannel;
+import org.spongepowered.api.text.channel.MessageReceiver;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A live set of players in a world that messages or sounds are delivered to. Members are added and removed
+ * as players join, leave, change worlds or (un)mute themselves, so delivering to it needs no per-player lookups.
+ */
+class WorldAudience implements MessageChannel {
+
+    private final Map<UUID, Player> members;
+    private final Collection<MessageReceiver> membersView;
+
+    WorldAudience() {
+        members = new ConcurrentHashMap<>();
+        membersView = Collections.unmodifiableCollection(members.values());
+    }
+
+    void add(Player player) {
+        members.put(player.getUniqueId(), player);
+    }
+
+    void remove(UUID playerUuid) {
+        members.remove(playerUuid);
+    }
+
+    int size() {
+        return members.size();
+    }
+
+    void playSound(SoundType sound) {
+        for (Player player : members.values()) {
+            player.playSound(sound, player.getLocation().getPosition(), 1);
+        }
+    }
+
+    @Override
+    public Collection<MessageReceiver> getMembers() {
+        return membersView;
+    }
+}
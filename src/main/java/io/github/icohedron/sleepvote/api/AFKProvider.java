@@ -0,0 +1,30 @@
+package io.github.icohedron.sleepvote.api;
+
+import org.spongepowered.api.entity.living.player.Player;
+
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * A source of AFK state, such as the Nucleus integration. When "ignore_afk_players" is enabled, a player
+ * is considered AFK if any of the providers registered through {@link SleepVoteService#registerAFKProvider(AFKProvider)} says so.
+ */
+public interface AFKProvider {
+
+    /**
+     * Called when SleepVote starts using the provider
+     *
+     * @param onChange to be called from the main thread with the player whenever their AFK state changes
+     */
+    void enable(Consumer<Player> onChange);
+
+    /**
+     * Called when SleepVote stops using the provider. The provider should stop reporting changes
+     */
+    void disable();
+
+    /**
+     * Only called from the main thread. The asynchronous voting loop reads SleepVote's own combined AFK state instead
+     */
+    boolean isAFK(UUID playerUuid);
+}
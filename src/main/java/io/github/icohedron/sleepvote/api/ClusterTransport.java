@@ -0,0 +1,29 @@
+package io.github.icohedron.sleepvote.api;
+
+import java.util.function.Consumer;
+
+/**
+ * Carries the messages of SleepVote's cluster mode between the servers of a cluster. To use a transport of your own
+ * (e.g. over Redis or a message broker), register an implementation with Sponge's service manager before the server
+ * has started. Otherwise, SleepVote sends the messages as UDP packets to the configured peers.
+ * <p>
+ * Messages are small byte arrays, delivered on a best-effort basis: they may be lost, duplicated or arrive out of
+ * order. SleepVote detects stale messages itself, and every server sends its full state every few seconds to make up
+ * for lost ones, so a transport only needs to deliver most messages to every other server in the cluster, promptly.
+ */
+public interface ClusterTransport {
+
+    /**
+     * Starts delivering the messages sent by the other servers of the cluster
+     *
+     * @param receiver may be called from any thread, but never concurrently
+     */
+    void start(Consumer<byte[]> receiver);
+
+    /**
+     * Sends the message to every other server of the cluster. May be called from any thread
+     */
+    void send(byte[] message);
+
+    void stop();
+}
@@ -0,0 +1,45 @@
+package io.github.icohedron.sleepvote.api;
+
+import org.spongepowered.api.event.cause.Cause;
+import org.spongepowered.api.event.impl.AbstractEvent;
+import org.spongepowered.api.event.world.TargetWorldEvent;
+import org.spongepowered.api.world.World;
+
+/**
+ * Fired on the main thread after SleepVote has skipped the night of a world, once the wakeup message has been sent
+ */
+public class NightSkipEvent extends AbstractEvent implements TargetWorldEvent {
+
+    private final Cause cause;
+    private final World world;
+    private final int sleepingCount;
+    private final int requiredCount;
+
+    public NightSkipEvent(Cause cause, World world, int sleepingCount, int requiredCount) {
+        this.cause = cause;
+        this.world = world;
+        this.sleepingCount = sleepingCount;
+        this.requiredCount = requiredCount;
+    }
+
+    @Override
+    public Cause getCause() {
+        return cause;
+    }
+
+    @Override
+    public World getTargetWorld() {
+        return world;
+    }
+
+    /**
+     * @return the number of players who were sleeping when the night was skipped
+     */
+    public int getSleepingCount() {
+        return sleepingCount;
+    }
+
+    public int getRequiredCount() {
+        return requiredCount;
+    }
+}
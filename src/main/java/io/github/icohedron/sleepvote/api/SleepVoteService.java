@@ -0,0 +1,53 @@
+package io.github.icohedron.sleepvote.api;
+
+import org.spongepowered.api.world.World;
+
+import java.util.UUID;
+
+/**
+ * Gives other plugins access to the state of the votes of every world, straight from SleepVote's own bookkeeping.
+ * Every query answers in constant time and may be called from any thread.
+ * <p>
+ * To be notified of changes rather than asking for them, listen for {@link VoteChangeEvent} and {@link NightSkipEvent}.
+ * Plugins that know when players are AFK can have them ignored by registering an {@link AFKProvider}.
+ */
+public interface SleepVoteService {
+
+    /**
+     * @return the number of players currently counted as sleeping in the world
+     */
+    int getSleepingCount(UUID worldUuid);
+
+    /**
+     * @return the number of sleeping players needed to skip the night in the world, given who is currently counted
+     */
+    int getRequiredCount(UUID worldUuid);
+
+    /**
+     * @return whether enough players are sleeping and the night of the world is being skipped
+     */
+    boolean isSkipping(UUID worldUuid);
+
+    /**
+     * Starts using the provider as a source of AFK state, alongside Nucleus or the built-in idle detector.
+     * It only has an effect while "ignore_afk_players" is enabled. Must be called from the main thread
+     */
+    void registerAFKProvider(AFKProvider provider);
+
+    /**
+     * Stops using the provider. Must be called from the main thread
+     */
+    void unregisterAFKProvider(AFKProvider provider);
+
+    default int getSleepingCount(World world) {
+        return getSleepingCount(world.getUniqueId());
+    }
+
+    default int getRequiredCount(World world) {
+        return getRequiredCount(world.getUniqueId());
+    }
+
+    default boolean isSkipping(World world) {
+        return isSkipping(world.getUniqueId());
+    }
+}
@@ -0,0 +1,70 @@
+package io.github.icohedron.sleepvote.api;
+
+import org.spongepowered.api.event.cause.Cause;
+import org.spongepowered.api.event.impl.AbstractEvent;
+import org.spongepowered.api.event.world.TargetWorldEvent;
+import org.spongepowered.api.world.World;
+
+import java.util.UUID;
+
+/**
+ * Fired on the main thread after a player has been counted as sleeping, or has stopped being counted, in a world
+ */
+public class VoteChangeEvent extends AbstractEvent implements TargetWorldEvent {
+
+    public enum Type {
+        ENTER_BED,
+        EXIT_BED
+    }
+
+    private final Cause cause;
+    private final World world;
+    private final UUID playerUuid;
+    private final Type type;
+    private final int sleepingCount;
+    private final int requiredCount;
+
+    public VoteChangeEvent(Cause cause, World world, UUID playerUuid, Type type, int sleepingCount, int requiredCount) {
+        this.cause = cause;
+        this.world = world;
+        this.playerUuid = playerUuid;
+        this.type = type;
+        this.sleepingCount = sleepingCount;
+        this.requiredCount = requiredCount;
+    }
+
+    @Override
+    public Cause getCause() {
+        return cause;
+    }
+
+    @Override
+    public World getTargetWorld() {
+        return world;
+    }
+
+    /**
+     * @return the player who entered or left their bed. They may have gone offline since
+     */
+    public UUID getPlayerUuid() {
+        return playerUuid;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the number of players counted as sleeping right after the change
+     */
+    public int getSleepingCount() {
+        return sleepingCount;
+    }
+
+    /**
+     * @return the number of sleeping players needed to skip the night right after the change
+     */
+    public int getRequiredCount() {
+        return requiredCount;
+    }
+}
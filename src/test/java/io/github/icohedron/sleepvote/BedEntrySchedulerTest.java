@@ -0,0 +1,111 @@
+package io.github.icohedron.sleepvote;
+
+import org.junit.Test;
+import org.spongepowered.api.entity.living.player.Player;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the timing wheel of {@link BedEntryScheduler}: handles that outlive their entry, and deadlines further away
+ * than one turn of the wheel
+ */
+public class BedEntrySchedulerTest {
+
+    private final List<Player> fired = new ArrayList<>();
+    private final BedEntryScheduler scheduler = new BedEntryScheduler(fired::add);
+
+    @Test
+    public void staleHandleDoesNotCancelReusedEntry() {
+        Player first = player("first");
+        Player second = player("second");
+
+        long firstHandle = scheduler.schedule(first, 5);
+        scheduler.cancel(firstHandle);
+        long secondHandle = scheduler.schedule(second, 5); // Reuses the entry of the first
+        assertEquals("The entry should be reused", (int) firstHandle, (int) secondHandle);
+
+        scheduler.cancel(firstHandle);
+        tick(5);
+        assertEquals(Collections.singletonList(second), fired);
+    }
+
+    @Test
+    public void handleOfFiredEntryDoesNotCancelReusedEntry() {
+        Player first = player("first");
+        Player second = player("second");
+
+        long firstHandle = scheduler.schedule(first, 1);
+        tick(1);
+        scheduler.schedule(second, 3);
+        scheduler.cancel(firstHandle);
+        scheduler.cancel(BedEntryScheduler.NONE);
+        tick(3);
+        assertEquals(Arrays.asList(first, second), fired);
+    }
+
+    @Test
+    public void delaysLongerThanWheelFireOnTime() {
+        Player near = player("near");
+        Player far = player("far");
+        Player farther = player("farther");
+        scheduler.schedule(near, 10);
+        scheduler.schedule(far, BedEntryScheduler.WHEEL_SIZE + 10); // Shares the slot of the near one
+        scheduler.schedule(farther, BedEntryScheduler.WHEEL_SIZE * 3 + 10);
+
+        tick(10);
+        assertEquals(Collections.singletonList(near), fired);
+        tick(BedEntryScheduler.WHEEL_SIZE - 1);
+        assertEquals(Collections.singletonList(near), fired);
+        tick(1);
+        assertEquals(Arrays.asList(near, far), fired);
+        tick(BedEntryScheduler.WHEEL_SIZE * 2 - 1);
+        assertEquals(2, fired.size());
+        tick(1);
+        assertEquals(Arrays.asList(near, far, farther), fired);
+    }
+
+    @Test
+    public void cancelledEntriesNeverFire() {
+        List<Player> kept = new ArrayList<>();
+        for (int i = 0; i < 200; i++) { // More entries than the initial capacity
+            Player player = player("player" + i);
+            long handle = scheduler.schedule(player, 1 + i % (BedEntryScheduler.WHEEL_SIZE * 2));
+            if (i % 3 == 0) {
+                scheduler.cancel(handle);
+            } else {
+                kept.add(player);
+            }
+        }
+        tick(BedEntryScheduler.WHEEL_SIZE * 2);
+        assertEquals(kept.size(), fired.size());
+        assertTrue(fired.containsAll(kept));
+    }
+
+    private void tick(int ticks) {
+        for (int i = 0; i < ticks; i++) {
+            scheduler.tick();
+        }
+    }
+
+    private static Player player(String name) {
+        return (Player) Proxy.newProxyInstance(Player.class.getClassLoader(), new Class<?>[]{Player.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return name;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+}
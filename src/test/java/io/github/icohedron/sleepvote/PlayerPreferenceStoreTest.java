@@ -0,0 +1,139 @@
+package io.github.icohedron.sleepvote;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.helpers.NOPLogger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the on-disk hash table of {@link PlayerPreferenceStore}: probing past colliding records, growing the table,
+ * and reading the records back after reopening the file
+ */
+public class PlayerPreferenceStoreTest {
+
+    private static final int INITIAL_FILE_SIZE = 12 + 1024 * 17;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void collidingInsertsKeepTheirOwnRecords() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("players.dat");
+        PlayerPreferenceStore store = new PlayerPreferenceStore(NOPLogger.NOP_LOGGER, path);
+
+        // UUIDs whose halves XOR to the same value have the same hash code, so they all probe from the same slot
+        List<UUID> uuids = new ArrayList<>();
+        for (int i = 1; i <= 300; i++) {
+            uuids.add(new UUID(i, i ^ 0x5EEDL));
+        }
+        assertEquals(uuids.get(0).hashCode(), uuids.get(299).hashCode());
+        for (int i = 0; i < uuids.size(); i++) {
+            store.storePlayer(uuids.get(i), new SVPlayerData(i % 2 == 0, i % 3 == 0));
+        }
+        store.save();
+
+        for (int i = 0; i < uuids.size(); i++) {
+            assertSettings(store.readPlayer(uuids.get(i)), i % 2 == 0, i % 3 == 0);
+        }
+        assertSettings(store.readPlayer(new UUID(1000, 1000 ^ 0x5EEDL)), false, false); // Never stored, at the end of the chain
+        store.dispose();
+    }
+
+    @Test
+    public void growsPastLoadFactor() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("players.dat");
+        PlayerPreferenceStore store = new PlayerPreferenceStore(NOPLogger.NOP_LOGGER, path);
+
+        List<UUID> uuids = randomUuids(3000);
+        for (int i = 0; i < uuids.size(); i++) {
+            store.storePlayer(uuids.get(i), new SVPlayerData(i % 2 == 0, i % 2 != 0));
+            if (i % 100 == 0) {
+                store.save(); // Grows over several saves, like the background task would
+            }
+        }
+        store.save();
+        assertTrue("The table should have grown", Files.size(path) > INITIAL_FILE_SIZE);
+
+        for (int i = 0; i < uuids.size(); i++) {
+            assertSettings(store.readPlayer(uuids.get(i)), i % 2 == 0, i % 2 != 0);
+        }
+        store.dispose();
+    }
+
+    @Test
+    public void reopenedFileReadsBack() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("players.dat");
+        List<UUID> uuids = randomUuids(1500);
+
+        PlayerPreferenceStore store = new PlayerPreferenceStore(NOPLogger.NOP_LOGGER, path);
+        for (int i = 0; i < uuids.size(); i++) {
+            store.storePlayer(uuids.get(i), new SVPlayerData(i % 3 == 0, i % 5 == 0));
+        }
+        store.dispose(); // Saves what is pending
+        store = new PlayerPreferenceStore(NOPLogger.NOP_LOGGER, path);
+        for (int i = 0; i < uuids.size(); i++) {
+            assertSettings(store.readPlayer(uuids.get(i)), i % 3 == 0, i % 5 == 0);
+        }
+
+        // Turning every setting off again is remembered as well
+        store.storePlayer(uuids.get(0), new SVPlayerData(false, false));
+        store.dispose();
+        store = new PlayerPreferenceStore(NOPLogger.NOP_LOGGER, path);
+        assertSettings(store.readPlayer(uuids.get(0)), false, false);
+        store.dispose();
+    }
+
+    @Test
+    public void preloadedSettingsAreTakenOnce() {
+        Path path = folder.getRoot().toPath().resolve("players.dat");
+        PlayerPreferenceStore store = new PlayerPreferenceStore(NOPLogger.NOP_LOGGER, path);
+        UUID uuid = new UUID(1, 2);
+        store.storePlayer(uuid, new SVPlayerData(true, false));
+        store.save();
+
+        store.preload(uuid);
+        assertSettings(store.takePreloaded(uuid), true, false);
+        assertNull(store.takePreloaded(uuid));
+        store.dispose();
+    }
+
+    @Test
+    public void invalidFileIsMovedAside() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("players.dat");
+        Files.write(path, new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+
+        PlayerPreferenceStore store = new PlayerPreferenceStore(NOPLogger.NOP_LOGGER, path);
+        assertTrue(Files.exists(path.resolveSibling("players.dat.invalid")));
+        assertSettings(store.readPlayer(new UUID(1, 2)), false, false);
+        store.dispose();
+    }
+
+    private static List<UUID> randomUuids(int count) {
+        Random random = new Random(1);
+        List<UUID> uuids = new ArrayList<>(count);
+        while (uuids.size() < count) {
+            UUID uuid = new UUID(random.nextLong(), random.nextLong());
+            if (uuid.getMostSignificantBits() != 0 || uuid.getLeastSignificantBits() != 0) { // All zeros marks an empty record
+                uuids.add(uuid);
+            }
+        }
+        return uuids;
+    }
+
+    private static void assertSettings(SVPlayerData svPlayerData, boolean mute, boolean hidden) {
+        assertEquals("mute", mute, svPlayerData.isMute());
+        assertEquals("hidden", hidden, svPlayerData.isHidden());
+    }
+}
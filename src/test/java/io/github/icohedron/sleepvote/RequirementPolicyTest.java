@@ -0,0 +1,105 @@
+package io.github.icohedron.sleepvote;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the integer arithmetic of {@link RequirementPolicy} against the BigDecimal calculation it replaced
+ */
+public class RequirementPolicyTest {
+
+    private static final int MAX_POPULATION = 100000;
+    private static final int[] ROUNDING_MODES = {0, 1, 2};
+    private static final String[] PERCENTAGES = {"0", "0.0", "0.01", "0.1", "0.25", "0.333", "0.3333333333333", "0.5", "0.50",
+            "0.6667", "0.75", "0.9", "0.999", "0.123456789", "0.1234567891", "1", "1.0"};
+    private static final int[] REQUIRED_NUMBERS = {0, -1, 1, 2, 5, 50, 1000, 99999, Integer.MAX_VALUE};
+
+    @Test
+    public void matchesBigDecimalCalculation() {
+        for (String percentage : PERCENTAGES) {
+            BigDecimal requiredPercent = new BigDecimal(percentage);
+            for (int roundingMode : ROUNDING_MODES) {
+                RequirementPolicy[][] policies = new RequirementPolicy[REQUIRED_NUMBERS.length][2];
+                for (int n = 0; n < REQUIRED_NUMBERS.length; n++) {
+                    policies[n][0] = new RequirementPolicy(requiredPercent, RequirementPolicy.roundingModeOf(roundingMode), REQUIRED_NUMBERS[n], false);
+                    policies[n][1] = new RequirementPolicy(requiredPercent, RequirementPolicy.roundingModeOf(roundingMode), REQUIRED_NUMBERS[n], true);
+                }
+
+                for (int population = 0; population <= MAX_POPULATION; population++) {
+                    int requiredFromPercent = referenceRequiredFromPercent(population, requiredPercent, roundingMode);
+                    for (int n = 0; n < REQUIRED_NUMBERS.length; n++) {
+                        for (int higher = 0; higher < 2; higher++) {
+                            int expected = referenceRequired(population, requiredFromPercent, REQUIRED_NUMBERS[n], higher == 1);
+                            assertEquals("percent " + percentage + ", rounding mode " + roundingMode + ", required number " + REQUIRED_NUMBERS[n]
+                                            + ", higher " + (higher == 1) + ", population " + population,
+                                    expected, policies[n][higher].getRequired(population));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void matchesBigDecimalCalculationForLargePopulations() {
+        for (String percentage : PERCENTAGES) {
+            BigDecimal requiredPercent = new BigDecimal(percentage);
+            for (int roundingMode : ROUNDING_MODES) {
+                RequirementPolicy policy = new RequirementPolicy(requiredPercent, RequirementPolicy.roundingModeOf(roundingMode), 0, false);
+                for (int i = 0; i <= 1000; i++) {
+                    int population = Integer.MAX_VALUE - i;
+                    int expected = referenceRequired(population, referenceRequiredFromPercent(population, requiredPercent, roundingMode), 0, false);
+                    assertEquals("percent " + percentage + ", rounding mode " + roundingMode + ", population " + population,
+                            expected, policy.getRequired(population));
+                }
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnsupportedRoundingModes() {
+        new RequirementPolicy(new BigDecimal("0.5"), RoundingMode.HALF_EVEN, 0, false);
+    }
+
+    // The calculation of SleepVoteManager.getRequiredPlayerCount before RequirementPolicy, as a reference
+
+    private static int referenceRequiredFromPercent(int population, BigDecimal requiredPercentSleeping, int roundingMode) {
+        BigDecimal requiredFromPercentBD = BigDecimal.valueOf(population).multiply(requiredPercentSleeping);
+        int requiredFromPercent;
+        switch (roundingMode) {
+            case 0:
+                requiredFromPercent = requiredFromPercentBD.setScale(0, RoundingMode.HALF_UP).intValue();
+                break;
+            case 1:
+                requiredFromPercent = requiredFromPercentBD.setScale(0, RoundingMode.FLOOR).intValue();
+                break;
+            case 2:
+            default:
+                requiredFromPercent = requiredFromPercentBD.setScale(0, RoundingMode.CEILING).intValue();
+                break;
+        }
+        return requiredFromPercent;
+    }
+
+    private static int referenceRequired(int population, int requiredFromPercent, int requiredNumberSleeping, boolean useHigherRequirementType) {
+        int required;
+        if (requiredNumberSleeping <= 0) {
+            required = requiredFromPercent;
+        } else {
+            // Cap the required number of players sleeping at the current player count
+            int realRequiredNumberSleeping = Math.min(population, requiredNumberSleeping);
+
+            if (useHigherRequirementType) {
+                required = Math.max(requiredFromPercent, realRequiredNumberSleeping);
+            } else {
+                required = Math.min(requiredFromPercent, realRequiredNumberSleeping);
+            }
+        }
+
+        return Math.max(required, 1);
+    }
+}
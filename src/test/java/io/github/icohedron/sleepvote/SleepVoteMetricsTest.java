@@ -0,0 +1,40 @@
+package io.github.icohedron.sleepvote;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the percentiles reported by {@link SleepVoteMetrics.Histogram}, including when it is empty or overflowing
+ */
+public class SleepVoteMetricsTest {
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        SleepVoteMetrics.Histogram histogram = new SleepVoteMetrics.Histogram(1_000L, 21);
+        assertEquals(0, histogram.getPercentileBound(0.99));
+        assertFalse(histogram.isAboveBounds(0.99));
+    }
+
+    @Test
+    public void percentileFallsInBucket() {
+        SleepVoteMetrics.Histogram histogram = new SleepVoteMetrics.Histogram(1_000L, 21);
+        for (int i = 0; i < 99; i++) {
+            histogram.record(500);
+        }
+        histogram.record(3_000);
+        assertEquals(1_000, histogram.getPercentileBound(0.99));
+        assertEquals(4_000, histogram.getPercentileBound(1));
+        assertFalse(histogram.isAboveBounds(1));
+    }
+
+    @Test
+    public void overflowReportsLargestBound() {
+        SleepVoteMetrics.Histogram histogram = new SleepVoteMetrics.Histogram(1_000L, 4);
+        histogram.record(Long.MAX_VALUE / 2);
+        assertEquals(8_000, histogram.getPercentileBound(0.99));
+        assertTrue(histogram.isAboveBounds(0.99));
+    }
+}
@@ -0,0 +1,85 @@
+package io.github.icohedron.sleepvote;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.helpers.NOPLogger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the ring buffer of {@link VoteAuditLog}: dropping events once it is full, and draining it over several laps
+ */
+public class VoteAuditLogTest {
+
+    private static final UUID WORLD_UUID = new UUID(1, 2);
+    private static final UUID PLAYER_UUID = new UUID(3, 4);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path path;
+    private VoteAuditLog auditLog;
+
+    @Before
+    public void setUp() {
+        path = folder.getRoot().toPath().resolve("audit.log");
+        auditLog = new VoteAuditLog(NOPLogger.NOP_LOGGER, null, path); // The main thread is only used to echo to the console
+        auditLog.configure(false, 16 * 1024);
+    }
+
+    @Test
+    public void fullBufferDropsEvents() throws IOException {
+        for (int i = 0; i < VoteAuditLog.CAPACITY + 100; i++) {
+            auditLog.record(VoteAuditLog.EventType.ENTER, WORLD_UUID, PLAYER_UUID, i, 0);
+        }
+        auditLog.flush();
+        assertSleepingCounts(readLines(), VoteAuditLog.CAPACITY);
+
+        // The buffer has room again once drained
+        auditLog.record(VoteAuditLog.EventType.SKIP, WORLD_UUID, null, -1, 0);
+        auditLog.dispose();
+        List<String> lines = readLines();
+        assertEquals(VoteAuditLog.CAPACITY + 1, lines.size());
+        String skip = lines.get(VoteAuditLog.CAPACITY);
+        assertEquals(WORLD_UUID + ",,SKIP,-1,0", skip.substring(skip.indexOf(',') + 1));
+    }
+
+    @Test
+    public void drainsPastOneLap() throws IOException {
+        int events = VoteAuditLog.CAPACITY * 3 + 17;
+        int batch = VoteAuditLog.CAPACITY / 3 + 1; // So that batches straddle the end of the arrays
+        for (int i = 0; i < events; i++) {
+            auditLog.record(VoteAuditLog.EventType.EXIT, WORLD_UUID, PLAYER_UUID, i, i % 7);
+            if (i % batch == 0) {
+                auditLog.flush();
+            }
+        }
+        auditLog.dispose();
+        assertSleepingCounts(readLines(), events);
+    }
+
+    private List<String> readLines() throws IOException {
+        return Files.readAllLines(path, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Every line must be an event of its own, in the order they were recorded
+     */
+    private static void assertSleepingCounts(List<String> lines, int count) {
+        assertEquals(count, lines.size());
+        for (int i = 0; i < count; i++) {
+            String[] fields = lines.get(i).split(",");
+            assertEquals(lines.get(i), 6, fields.length);
+            assertEquals(lines.get(i), String.valueOf(i), fields[4]);
+        }
+    }
+}